@@ -0,0 +1,134 @@
+package at.abraxas.amarino;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ComponentName;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Compares how long a message takes from the send call until it is in the outbound queue of
+ * its connection, sent through the bound {@link AmarinoService.AmarinoServiceBinder} and as an
+ * ACTION_SEND broadcast with {@link AmarinoHelper#sendDataToArduino(android.content.Context, String, char, int)}.
+ *
+ * <p>Needs a paired device in range, set {@link #DEVICE_ADDRESS} to it. Any sketch will do, the
+ * frames are not answered. Results are logged with the tag SendLatencyBenchmark.</p>
+ */
+public class SendLatencyBenchmark extends AndroidTestCase {
+
+	private static final String TAG = "SendLatencyBenchmark";
+
+	// the device the frames are sent to, the benchmark is skipped without one
+	private static final String DEVICE_ADDRESS = "";
+
+	private static final int WARMUP = 200;
+	private static final int MESSAGES = 2000;
+	private static final long CONNECT_TIMEOUT_MILLIS = 20000;
+	private static final long QUEUED_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+	private AmarinoService.AmarinoServiceBinder mBinder;
+	private final CountDownLatch mBound = new CountDownLatch(1);
+
+	private final ServiceConnection mConnection = new ServiceConnection() {
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder service) {
+			mBinder = (AmarinoService.AmarinoServiceBinder) service;
+			mBound.countDown();
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			mBinder = null;
+		}
+	};
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		if (DEVICE_ADDRESS.length() == 0) return;
+
+		assertTrue(AmarinoHelper.bindService(getContext(), mConnection));
+		assertTrue(mBound.await(5, TimeUnit.SECONDS));
+		// every frame must be queued to be counted, none may be dropped or rejected
+		ConnectionSettings.get(DEVICE_ADDRESS).setWriteQueueCapacity(MESSAGES + WARMUP)
+				.setWriteQueuePolicy(OverflowPolicy.BLOCK);
+
+		AmarinoHelper.connect(getContext(), DEVICE_ADDRESS);
+		final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+		while (!mBinder.isConnected(DEVICE_ADDRESS) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+		assertTrue("could not connect to " + DEVICE_ADDRESS, mBinder.isConnected(DEVICE_ADDRESS));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (DEVICE_ADDRESS.length() > 0) {
+			AmarinoHelper.disconnect(getContext(), DEVICE_ADDRESS);
+			AmarinoHelper.unbindService(getContext(), mConnection);
+		}
+		super.tearDown();
+	}
+
+	public void testBinderAgainstBroadcast() throws Exception {
+		if (DEVICE_ADDRESS.length() == 0) {
+			Log.i(TAG, "no DEVICE_ADDRESS set, skipped");
+			return;
+		}
+
+		measure(true, WARMUP);
+		measure(false, WARMUP);
+		long[] binder = measure(true, MESSAGES);
+		long[] broadcast = measure(false, MESSAGES);
+
+		report("binder", binder);
+		report("broadcast", broadcast);
+	}
+
+	/**
+	 * Sends one message at a time and waits until it is queued.
+	 *
+	 * @return the latency of each message in nanoseconds
+	 */
+	private long[] measure(boolean binder, int messages) throws InterruptedException {
+		final long[] latencies = new long[messages];
+		for (int i = 0; i < messages; i++) {
+			final ConnectionWriter writer = AmarinoService.writerOf(DEVICE_ADDRESS.toUpperCase());
+			assertNotNull("connection to " + DEVICE_ADDRESS + " lost", writer);
+			final long accepted = writer.getAcceptedCount();
+
+			final long start = System.nanoTime();
+			if (binder) {
+				assertTrue(mBinder.send(DEVICE_ADDRESS, 'A', i));
+			} else {
+				assertTrue(AmarinoHelper.sendDataToArduino(getContext(), DEVICE_ADDRESS, 'A', i));
+			}
+			while (writer.getAcceptedCount() == accepted) {
+				if (System.nanoTime() - start > QUEUED_TIMEOUT_NANOS) fail("message " + i + " was not queued");
+				Thread.yield();
+			}
+			latencies[i] = System.nanoTime() - start;
+		}
+		return latencies;
+	}
+
+	private static void report(String path, long[] latencies) {
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		long total = 0;
+		for (long l : sorted) {
+			total += l;
+		}
+		Log.i(TAG, path + ": " + sorted.length + " messages, mean " + total / sorted.length / 1000
+				+ "us, p50 " + percentile(sorted, 50) / 1000 + "us, p99 " + percentile(sorted, 99) / 1000
+				+ "us, max " + sorted[sorted.length - 1] / 1000 + "us");
+	}
+
+	private static long percentile(long[] sorted, int p) {
+		return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)];
+	}
+}
@@ -0,0 +1,95 @@
+package at.abraxas.amarino;
+
+/**
+ * Downsampling of a numeric stream from Arduino, configured per device and flag with
+ * {@link ConnectionSettings#setAggregation(char, Aggregation)}.
+ *
+ * <p>The stream is made of messages starting with the flag followed by one or more values separated
+ * by {@link MessageBuilder#DELIMITER}, e.g. <code>A12;-3;980</code> for an accelerometer. The service
+ * aggregates them on its reading thread and only delivers the results, as a message starting with
+ * the same flag. Results are also delivered as {@link AmarinoIntent#DOUBLE_ARRAY_EXTRA} typed data,
+ * see {@link AmarinoDataListener}.</p>
+ *
+ * <p>For every function, in the order {@link #MIN}, {@link #MAX}, {@link #MEAN}, {@link #LAST},
+ * a result holds one value per value of the samples. A window is delivered when the first sample
+ * after it arrives. Messages of the flag which are not numeric are delivered unchanged.</p>
+ */
+public class Aggregation {
+
+	public static final int MIN = 1;
+	public static final int MAX = 2;
+	public static final int MEAN = 4;
+	public static final int LAST = 8;
+
+	private final int mDecimation;
+	private final long mWindowMillis;
+	private final long mStepMillis;
+	private final int mFunctions;
+	private volatile boolean mForwardingRaw = false;
+
+	private Aggregation(int decimation, long windowMillis, long stepMillis, int functions) {
+		mDecimation = decimation;
+		mWindowMillis = windowMillis;
+		mStepMillis = stepMillis;
+		mFunctions = functions;
+	}
+
+	/**
+	 * Delivers every n-th message unchanged and drops the others.
+	 */
+	public static Aggregation decimate(int n) {
+		if (n < 1) throw new IllegalArgumentException("decimation must be positive");
+		return new Aggregation(n, 0, 0, 0);
+	}
+
+	/**
+	 * Aggregates consecutive windows which do not overlap.
+	 *
+	 * @param functions {@link #MIN}, {@link #MAX}, {@link #MEAN} and {@link #LAST} or-ed together
+	 */
+	public static Aggregation tumbling(long windowMillis, int functions) {
+		return sliding(windowMillis, windowMillis, functions);
+	}
+
+	/**
+	 * Aggregates the last windowMillis of samples every stepMillis.
+	 *
+	 * @param functions {@link #MIN}, {@link #MAX}, {@link #MEAN} and {@link #LAST} or-ed together
+	 */
+	public static Aggregation sliding(long windowMillis, long stepMillis, int functions) {
+		if (windowMillis < 1 || stepMillis < 1)
+			throw new IllegalArgumentException("window and step must be positive");
+		if (functions == 0 || (functions & ~(MIN | MAX | MEAN | LAST)) != 0)
+			throw new IllegalArgumentException("unknown functions " + functions);
+		return new Aggregation(0, windowMillis, stepMillis, functions);
+	}
+
+	public int getDecimation() {
+		return mDecimation;
+	}
+
+	public long getWindowMillis() {
+		return mWindowMillis;
+	}
+
+	public long getStepMillis() {
+		return mStepMillis;
+	}
+
+	public int getFunctions() {
+		return mFunctions;
+	}
+
+	public boolean isForwardingRaw() {
+		return mForwardingRaw;
+	}
+
+	/**
+	 * Also delivers every raw sample of a windowed aggregation, off by default.
+	 * The {@link InboundRing} of the device always gets the raw samples.
+	 */
+	public Aggregation setForwardingRaw(boolean forwardRaw) {
+		mForwardingRaw = forwardRaw;
+		return this;
+	}
+}
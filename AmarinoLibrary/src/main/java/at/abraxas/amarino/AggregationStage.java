@@ -0,0 +1,142 @@
+package at.abraxas.amarino;
+
+/**
+ * State of an {@link Aggregation} of one connection, only used by its reading thread.
+ */
+class AggregationStage {
+
+	interface Output {
+		void onAggregate(String message, AmarinoData data);
+	}
+
+	private static final int[] FUNCTIONS = {
+			Aggregation.MIN, Aggregation.MAX, Aggregation.MEAN, Aggregation.LAST };
+
+	final Aggregation mAggregation;
+	private final char mFlag;
+	private final AmarinoData mSample = new AmarinoData();
+	private final AmarinoData mResult = new AmarinoData();
+	private final StringBuilder mMessage = new StringBuilder(64);
+
+	private int mSeen;
+
+	// samples of the current window, oldest first, values stored component after component
+	private int mComponents;
+	private int mCount;
+	private long[] mTimes = new long[16];
+	private double[] mValues = new double[16];
+	private long mNextEmit;
+
+	AggregationStage(char flag, Aggregation aggregation) {
+		mFlag = flag;
+		mAggregation = aggregation;
+	}
+
+	/**
+	 * @param frame a message starting with the flag of this stage
+	 * @param now the receive time in milliseconds
+	 * @return true if the raw message should be delivered as well
+	 */
+	boolean add(byte[] frame, int length, long now, Output output) {
+		if (mAggregation.getDecimation() > 0) {
+			return (mSeen++ % mAggregation.getDecimation()) == 0;
+		}
+
+		if (!InboundDecoder.decode(AmarinoIntent.DOUBLE_ARRAY_EXTRA, frame, 1, length - 1, mSample)
+				|| mSample.size() == 0) {
+			return true;
+		}
+
+		if (mSample.size() != mComponents) {
+			// the sketch changed its samples, older ones cannot be combined with them
+			mComponents = mSample.size();
+			mCount = 0;
+		}
+		if (mCount == 0 && mNextEmit <= now) {
+			mNextEmit = now + mAggregation.getStepMillis();
+		}
+
+		while (now >= mNextEmit) {
+			emit(mNextEmit, output);
+			mNextEmit += mAggregation.getStepMillis();
+			evictBefore(mNextEmit - mAggregation.getWindowMillis());
+			if (mCount == 0 && now >= mNextEmit) {
+				// skip the empty windows of a pause in the stream
+				long steps = (now - mNextEmit) / mAggregation.getStepMillis() + 1;
+				mNextEmit += steps * mAggregation.getStepMillis();
+			}
+		}
+
+		append(now);
+		return mAggregation.isForwardingRaw();
+	}
+
+	private void append(long now) {
+		if (mCount == mTimes.length) {
+			long[] times = new long[mCount * 2];
+			System.arraycopy(mTimes, 0, times, 0, mCount);
+			mTimes = times;
+		}
+		if ((mCount + 1) * mComponents > mValues.length) {
+			double[] values = new double[Math.max(mValues.length * 2, (mCount + 1) * mComponents)];
+			System.arraycopy(mValues, 0, values, 0, mCount * mComponents);
+			mValues = values;
+		}
+		mTimes[mCount] = now;
+		for (int c = 0; c < mComponents; c++) {
+			mValues[mCount * mComponents + c] = mSample.getDouble(c);
+		}
+		mCount++;
+	}
+
+	private void evictBefore(long time) {
+		int keep = 0;
+		while (keep < mCount && mTimes[keep] < time) keep++;
+		if (keep == 0) return;
+
+		mCount -= keep;
+		System.arraycopy(mTimes, keep, mTimes, 0, mCount);
+		System.arraycopy(mValues, keep * mComponents, mValues, 0, mCount * mComponents);
+	}
+
+	/**
+	 * Aggregates the samples before the given time, all samples in the buffer are in the window.
+	 */
+	private void emit(long end, Output output) {
+		int count = 0;
+		while (count < mCount && mTimes[count] < end) count++;
+		if (count == 0) return;
+
+		mResult.reset(AmarinoIntent.DOUBLE_ARRAY_EXTRA);
+		mMessage.setLength(0);
+		mMessage.append(mFlag);
+
+		final int functions = mAggregation.getFunctions();
+		for (int function : FUNCTIONS) {
+			if ((functions & function) == 0) continue;
+
+			for (int c = 0; c < mComponents; c++) {
+				double value = aggregate(function, c, count);
+				if (mResult.size() > 0) mMessage.append(MessageBuilder.DELIMITER);
+				mMessage.append(value);
+				mResult.addDouble(value);
+			}
+		}
+		output.onAggregate(mMessage.toString(), mResult);
+	}
+
+	private double aggregate(int function, int component, int count) {
+		if (function == Aggregation.LAST) return mValues[(count - 1) * mComponents + component];
+
+		double result = mValues[component];
+		for (int i = 1; i < count; i++) {
+			double value = mValues[i * mComponents + component];
+			switch (function) {
+				case Aggregation.MIN: if (value < result) result = value; break;
+				case Aggregation.MAX: if (value > result) result = value; break;
+				case Aggregation.MEAN: result += value; break;
+			}
+		}
+		return (function == Aggregation.MEAN) ? result / count : result;
+	}
+}
@@ -0,0 +1,20 @@
+package at.abraxas.amarino;
+
+/**
+ * Implemented by an {@link AmarinoListener} which wants batched messages in one call,
+ * see {@link AmarinoHelper#setReceiveBatching(long, int)}.
+ *
+ * <p>Listeners which do not implement it get {@link AmarinoListener#onReceiveData(String, String)}
+ * once per message of a batch.</p>
+ */
+public interface AmarinoBatchListener {
+
+	/**
+	 * The arrays are parallel, index i describes the i-th message in the order it was received.
+	 *
+	 * @param data the messages
+	 * @param timestamps when each message was received, in milliseconds since the epoch
+	 * @param from the address of the device which sent each message
+	 */
+	void onReceiveDataBatch(String[] data, long[] timestamps, String[] from);
+}
@@ -0,0 +1,279 @@
+package at.abraxas.amarino;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A long-lived sender of one flag and data type to one device, see
+ * {@link AmarinoHelper#openChannel(String, char, int)}.
+ *
+ * <p>Values are encoded into a buffer owned by the channel and queued straight onto the connection,
+ * so sending does not allocate. A channel survives automatic reconnects, sends fail only while the
+ * device is being handed from one connection to the next. It is closed when the device is
+ * disconnected or its reconnect is given up, sends then return false. Open a new channel after
+ * connecting again.</p>
+ *
+ * <p>Methods are synchronized, a channel is meant to be used by one control loop though.</p>
+ */
+public class AmarinoChannel {
+
+	// open channels by upper case address, closed when their device goes away
+	private static final ConcurrentHashMap<String, CopyOnWriteArrayList<AmarinoChannel>> sOpen =
+			new ConcurrentHashMap<String, CopyOnWriteArrayList<AmarinoChannel>>();
+
+	private final String mAddress;
+	private final char mFlag;
+	private final int mType;
+	private final boolean mBinary;
+	private final FrameEncoder mEncoder;
+	private boolean mClosed;
+
+	/**
+	 * @param address upper case
+	 * @param maxValues the largest array to be sent, sizes the encode buffer
+	 */
+	AmarinoChannel(String address, char flag, int type, int maxValues) {
+		mAddress = address;
+		mFlag = flag;
+		mType = type;
+		mBinary = ConnectionSettings.peek(address).getFrameFormat() == ConnectionSettings.FRAME_FORMAT_BINARY;
+		// a float or long takes at most about 24 characters as text
+		mEncoder = new FrameEncoder(MessageBuilder.BINARY_HEADER_LENGTH + 4 + 25 * Math.max(maxValues, 1));
+	}
+
+	/**
+	 * @return null if the device was disconnected meanwhile
+	 */
+	static AmarinoChannel open(String address, char flag, int type, int maxValues) {
+		AmarinoChannel channel = new AmarinoChannel(address, flag, type, maxValues);
+
+		CopyOnWriteArrayList<AmarinoChannel> channels = sOpen.get(address);
+		if (channels == null) {
+			CopyOnWriteArrayList<AmarinoChannel> created = new CopyOnWriteArrayList<AmarinoChannel>();
+			channels = sOpen.putIfAbsent(address, created);
+			if (channels == null) channels = created;
+		}
+		channels.add(channel);
+
+		// disconnected while the channel was opened, closeAll may have missed it
+		if (AmarinoService.writerOf(address) == null) {
+			channel.close();
+			return null;
+		}
+		return channel;
+	}
+
+	/**
+	 * Called by the service when the device is disconnected for good.
+	 *
+	 * @param address upper case
+	 */
+	static void closeAll(String address) {
+		CopyOnWriteArrayList<AmarinoChannel> channels = sOpen.get(address);
+		if (channels == null) return;
+
+		for (AmarinoChannel channel : channels) {
+			channel.close();
+		}
+	}
+
+	public String getAddress() {
+		return mAddress;
+	}
+
+	public char getFlag() {
+		return mFlag;
+	}
+
+	/**
+	 * @return one of the AmarinoIntent type extras
+	 */
+	public int getType() {
+		return mType;
+	}
+
+	/**
+	 * For {@link AmarinoIntent#BOOLEAN_EXTRA} channels.
+	 */
+	public synchronized boolean send(boolean value) {
+		checkType(AmarinoIntent.BOOLEAN_EXTRA, AmarinoIntent.BOOLEAN_EXTRA);
+		if (mBinary) mEncoder.encodeBinary(mFlag, value); else mEncoder.encode(mFlag, value);
+		return enqueue();
+	}
+
+	/**
+	 * For {@link AmarinoIntent#BYTE_EXTRA}, CHAR, SHORT, INT and LONG channels, the value is narrowed
+	 * to the type of the channel.
+	 */
+	public synchronized boolean send(int value) {
+		switch (mType) {
+			case AmarinoIntent.BYTE_EXTRA:
+				if (mBinary) mEncoder.encodeBinary(mFlag, (byte) value); else mEncoder.encode(mFlag, (long) (byte) value);
+				break;
+			case AmarinoIntent.CHAR_EXTRA:
+				if (mBinary) mEncoder.encodeBinary(mFlag, (char) value); else mEncoder.encode(mFlag, (char) value);
+				break;
+			case AmarinoIntent.SHORT_EXTRA:
+				if (mBinary) mEncoder.encodeBinary(mFlag, (short) value); else mEncoder.encode(mFlag, (long) (short) value);
+				break;
+			case AmarinoIntent.INT_EXTRA:
+				if (mBinary) mEncoder.encodeBinary(mFlag, value); else mEncoder.encode(mFlag, (long) value);
+				break;
+			case AmarinoIntent.LONG_EXTRA:
+				mEncoder.encode(mFlag, (long) value);
+				break;
+			default:
+				throw wrongType();
+		}
+		return enqueue();
+	}
+
+	/**
+	 * For {@link AmarinoIntent#LONG_EXTRA} channels.
+	 */
+	public synchronized boolean send(long value) {
+		checkType(AmarinoIntent.LONG_EXTRA, AmarinoIntent.LONG_EXTRA);
+		mEncoder.encode(mFlag, value);
+		return enqueue();
+	}
+
+	/**
+	 * For {@link AmarinoIntent#FLOAT_EXTRA} and DOUBLE channels.
+	 */
+	public synchronized boolean send(float value) {
+		checkType(AmarinoIntent.FLOAT_EXTRA, AmarinoIntent.DOUBLE_EXTRA);
+		// Arduino doubles are 4-byte floats
+		if (mBinary) mEncoder.encodeBinary(mFlag, value); else mEncoder.encode(mFlag, value);
+		return enqueue();
+	}
+
+	/**
+	 * For {@link AmarinoIntent#DOUBLE_EXTRA} and FLOAT channels.
+	 */
+	public synchronized boolean send(double value) {
+		checkType(AmarinoIntent.FLOAT_EXTRA, AmarinoIntent.DOUBLE_EXTRA);
+		if (mBinary) mEncoder.encodeBinary(mFlag, (float) value); else mEncoder.encode(mFlag, value);
+		return enqueue();
+	}
+
+	/**
+	 * For {@link AmarinoIntent#STRING_EXTRA} channels.
+	 */
+	public synchronized boolean send(String value) {
+		checkType(AmarinoIntent.STRING_EXTRA, AmarinoIntent.STRING_EXTRA);
+		mEncoder.encode(mFlag, value);
+		return enqueue();
+	}
+
+	/**
+	 * For {@link AmarinoIntent#BOOLEAN_ARRAY_EXTRA} channels.
+	 */
+	public synchronized boolean send(boolean[] values) {
+		checkType(AmarinoIntent.BOOLEAN_ARRAY_EXTRA, AmarinoIntent.BOOLEAN_ARRAY_EXTRA);
+		if (!(mBinary && mEncoder.encodeBinary(mFlag, values)) && !mEncoder.encode(mFlag, values)) return false;
+		return enqueue();
+	}
+
+	/**
+	 * For {@link AmarinoIntent#BYTE_ARRAY_EXTRA} channels.
+	 */
+	public synchronized boolean send(byte[] values) {
+		checkType(AmarinoIntent.BYTE_ARRAY_EXTRA, AmarinoIntent.BYTE_ARRAY_EXTRA);
+		if (!(mBinary && mEncoder.encodeBinary(mFlag, values)) && !mEncoder.encode(mFlag, values)) return false;
+		return enqueue();
+	}
+
+	/**
+	 * For {@link AmarinoIntent#CHAR_ARRAY_EXTRA} channels.
+	 */
+	public synchronized boolean send(char[] values) {
+		checkType(AmarinoIntent.CHAR_ARRAY_EXTRA, AmarinoIntent.CHAR_ARRAY_EXTRA);
+		if (!(mBinary && mEncoder.encodeBinary(mFlag, values)) && !mEncoder.encode(mFlag, values)) return false;
+		return enqueue();
+	}
+
+	/**
+	 * For {@link AmarinoIntent#SHORT_ARRAY_EXTRA} channels.
+	 */
+	public synchronized boolean send(short[] values) {
+		checkType(AmarinoIntent.SHORT_ARRAY_EXTRA, AmarinoIntent.SHORT_ARRAY_EXTRA);
+		if (!(mBinary && mEncoder.encodeBinary(mFlag, values)) && !mEncoder.encode(mFlag, values)) return false;
+		return enqueue();
+	}
+
+	/**
+	 * For {@link AmarinoIntent#INT_ARRAY_EXTRA} channels.
+	 */
+	public synchronized boolean send(int[] values) {
+		checkType(AmarinoIntent.INT_ARRAY_EXTRA, AmarinoIntent.INT_ARRAY_EXTRA);
+		if (!(mBinary && mEncoder.encodeBinary(mFlag, values)) && !mEncoder.encode(mFlag, values)) return false;
+		return enqueue();
+	}
+
+	/**
+	 * For {@link AmarinoIntent#FLOAT_ARRAY_EXTRA} channels.
+	 */
+	public synchronized boolean send(float[] values) {
+		checkType(AmarinoIntent.FLOAT_ARRAY_EXTRA, AmarinoIntent.FLOAT_ARRAY_EXTRA);
+		if (!(mBinary && mEncoder.encodeBinary(mFlag, values)) && !mEncoder.encode(mFlag, values)) return false;
+		return enqueue();
+	}
+
+	/**
+	 * For {@link AmarinoIntent#DOUBLE_ARRAY_EXTRA} channels.
+	 */
+	public synchronized boolean send(double[] values) {
+		checkType(AmarinoIntent.DOUBLE_ARRAY_EXTRA, AmarinoIntent.DOUBLE_ARRAY_EXTRA);
+		if (!(mBinary && mEncoder.encodeBinary(mFlag, values)) && !mEncoder.encode(mFlag, values)) return false;
+		return enqueue();
+	}
+
+	/**
+	 * For {@link AmarinoIntent#LONG_ARRAY_EXTRA} channels.
+	 */
+	public synchronized boolean send(long[] values) {
+		checkType(AmarinoIntent.LONG_ARRAY_EXTRA, AmarinoIntent.LONG_ARRAY_EXTRA);
+		if (!mEncoder.encode(mFlag, values)) return false;
+		return enqueue();
+	}
+
+	/**
+	 * For {@link AmarinoIntent#STRING_ARRAY_EXTRA} channels.
+	 */
+	public synchronized boolean send(String[] values) {
+		checkType(AmarinoIntent.STRING_ARRAY_EXTRA, AmarinoIntent.STRING_ARRAY_EXTRA);
+		if (!mEncoder.encode(mFlag, values)) return false;
+		return enqueue();
+	}
+
+	/**
+	 * @return false once the channel was closed or the device disconnected
+	 */
+	public synchronized boolean isOpen() {
+		return !mClosed;
+	}
+
+	public synchronized void close() {
+		mClosed = true;
+
+		CopyOnWriteArrayList<AmarinoChannel> channels = sOpen.get(mAddress);
+		if (channels != null) channels.remove(this);
+	}
+
+	private boolean enqueue() {
+		if (mClosed) return false;
+
+		// looked up per frame, a reconnected device gets a new writer. There is none for a moment
+		// while a connection is handed to its reconnect and back, the frame fails then
+		final ConnectionWriter writer = AmarinoService.writerOf(mAddress);
+		return writer != null && writer.enqueue(mEncoder.getBuffer(), 0, mEncoder.getLength(), mFlag);
+	}
+
+	private void checkType(int type, int alternative) {
+		if (mType != type && mType != alternative) throw wrongType();
+	}
+
+	private IllegalArgumentException wrongType() {
+		return new IllegalArgumentException("channel of type " + mType + " cannot send this value");
+	}
+}
@@ -0,0 +1,291 @@
+package at.abraxas.amarino;
+
+import android.content.Intent;
+import android.os.Bundle;
+
+/**
+ * A typed message received from Arduino.
+ *
+ * <p>Arduino marks a typed message by sending one of the AmarinoIntent type extras
+ * (e.g. {@link AmarinoIntent#INT_ARRAY_EXTRA}) right after {@link MessageBuilder#ARDUINO_MSG_FLAG},
+ * if the connection expects it, see {@link ConnectionSettings#setTypedInbound(boolean)}.
+ * The service decodes the values once, listeners implementing {@link AmarinoDataListener} and
+ * receivers of {@link AmarinoIntent#ACTION_RECEIVED} get them without parsing Strings again.</p>
+ *
+ * <p>Integral values (boolean, byte, char, short, int, long) are read with the int and long getters,
+ * floating point values with the float and double getters. Single values are at index 0.</p>
+ *
+ * <p>Instances handed to listeners may be reused for the next message, copy what you need to keep.</p>
+ */
+public class AmarinoData {
+
+	private int mType;
+	private int mSize;
+	private long[] mLongs = new long[4];
+	private double[] mDoubles = new double[4];
+	private String[] mStrings = new String[1];
+
+	AmarinoData() {
+	}
+
+	/**
+	 * @return one of the AmarinoIntent type extras
+	 */
+	public int getType() {
+		return mType;
+	}
+
+	public boolean isArray() {
+		return (mType % 2) == 0;
+	}
+
+	/**
+	 * @return the number of values, 1 for single values
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	public boolean getBoolean() {
+		return getBoolean(0);
+	}
+
+	public boolean getBoolean(int index) {
+		return getLong(index) != 0;
+	}
+
+	public char getChar() {
+		return getChar(0);
+	}
+
+	public char getChar(int index) {
+		return (char) getLong(index);
+	}
+
+	public int getInt() {
+		return getInt(0);
+	}
+
+	public int getInt(int index) {
+		return (int) getLong(index);
+	}
+
+	public long getLong() {
+		return getLong(0);
+	}
+
+	public long getLong(int index) {
+		checkIndex(index);
+		if (isFloatingPoint()) return (long) mDoubles[index];
+		if (isText()) return 0;
+		return mLongs[index];
+	}
+
+	public float getFloat() {
+		return getFloat(0);
+	}
+
+	public float getFloat(int index) {
+		return (float) getDouble(index);
+	}
+
+	public double getDouble() {
+		return getDouble(0);
+	}
+
+	public double getDouble(int index) {
+		checkIndex(index);
+		if (isFloatingPoint()) return mDoubles[index];
+		if (isText()) return 0;
+		return mLongs[index];
+	}
+
+	public String getString() {
+		return getString(0);
+	}
+
+	/**
+	 * @return the value as String, numbers are formatted
+	 */
+	public String getString(int index) {
+		checkIndex(index);
+		if (isText()) return mStrings[index];
+		if (isFloatingPoint()) return String.valueOf(mDoubles[index]);
+		if (mType == AmarinoIntent.CHAR_EXTRA || mType == AmarinoIntent.CHAR_ARRAY_EXTRA)
+			return String.valueOf((char) mLongs[index]);
+		return String.valueOf(mLongs[index]);
+	}
+
+	/* ---------- filled by the service ---------- */
+
+	AmarinoData copy() {
+		AmarinoData copy = new AmarinoData();
+		copy.mType = mType;
+		copy.mSize = mSize;
+		if (isText()) {
+			copy.mStrings = new String[Math.max(mSize, 1)];
+			System.arraycopy(mStrings, 0, copy.mStrings, 0, mSize);
+		} else if (isFloatingPoint()) {
+			copy.mDoubles = new double[Math.max(mSize, 1)];
+			System.arraycopy(mDoubles, 0, copy.mDoubles, 0, mSize);
+		} else {
+			copy.mLongs = new long[Math.max(mSize, 1)];
+			System.arraycopy(mLongs, 0, copy.mLongs, 0, mSize);
+		}
+		return copy;
+	}
+
+	void reset(int type) {
+		mType = type;
+		mSize = 0;
+	}
+
+	void addLong(long value) {
+		if (mSize == mLongs.length) {
+			long[] longs = new long[mSize * 2];
+			System.arraycopy(mLongs, 0, longs, 0, mSize);
+			mLongs = longs;
+		}
+		mLongs[mSize++] = value;
+	}
+
+	void addDouble(double value) {
+		if (mSize == mDoubles.length) {
+			double[] doubles = new double[mSize * 2];
+			System.arraycopy(mDoubles, 0, doubles, 0, mSize);
+			mDoubles = doubles;
+		}
+		mDoubles[mSize++] = value;
+	}
+
+	void addString(String value) {
+		if (mSize == mStrings.length) {
+			String[] strings = new String[mSize * 2];
+			System.arraycopy(mStrings, 0, strings, 0, mSize);
+			mStrings = strings;
+		}
+		mStrings[mSize++] = value;
+	}
+
+	/**
+	 * Puts the values as {@link AmarinoIntent#EXTRA_TYPED_DATA}, using the Java type
+	 * matching {@link #getType()}, and the type as {@link AmarinoIntent#EXTRA_TYPED_DATA_TYPE}.
+	 */
+	void putInto(Intent intent) {
+		intent.putExtra(AmarinoIntent.EXTRA_TYPED_DATA_TYPE, mType);
+		final String key = AmarinoIntent.EXTRA_TYPED_DATA;
+
+		switch (mType) {
+			case AmarinoIntent.BOOLEAN_EXTRA: intent.putExtra(key, getBoolean()); break;
+			case AmarinoIntent.BYTE_EXTRA: intent.putExtra(key, (byte) getLong()); break;
+			case AmarinoIntent.CHAR_EXTRA: intent.putExtra(key, getChar()); break;
+			case AmarinoIntent.SHORT_EXTRA: intent.putExtra(key, (short) getLong()); break;
+			case AmarinoIntent.INT_EXTRA: intent.putExtra(key, getInt()); break;
+			case AmarinoIntent.LONG_EXTRA: intent.putExtra(key, getLong()); break;
+			case AmarinoIntent.FLOAT_EXTRA: intent.putExtra(key, getFloat()); break;
+			case AmarinoIntent.DOUBLE_EXTRA: intent.putExtra(key, getDouble()); break;
+			case AmarinoIntent.STRING_EXTRA: intent.putExtra(key, getString()); break;
+
+			case AmarinoIntent.BOOLEAN_ARRAY_EXTRA: {
+				boolean[] values = new boolean[mSize];
+				for (int i = 0; i < mSize; i++) values[i] = mLongs[i] != 0;
+				intent.putExtra(key, values);
+				break;
+			}
+			case AmarinoIntent.BYTE_ARRAY_EXTRA: {
+				byte[] values = new byte[mSize];
+				for (int i = 0; i < mSize; i++) values[i] = (byte) mLongs[i];
+				intent.putExtra(key, values);
+				break;
+			}
+			case AmarinoIntent.CHAR_ARRAY_EXTRA: {
+				char[] values = new char[mSize];
+				for (int i = 0; i < mSize; i++) values[i] = (char) mLongs[i];
+				intent.putExtra(key, values);
+				break;
+			}
+			case AmarinoIntent.SHORT_ARRAY_EXTRA: {
+				short[] values = new short[mSize];
+				for (int i = 0; i < mSize; i++) values[i] = (short) mLongs[i];
+				intent.putExtra(key, values);
+				break;
+			}
+			case AmarinoIntent.INT_ARRAY_EXTRA: {
+				int[] values = new int[mSize];
+				for (int i = 0; i < mSize; i++) values[i] = (int) mLongs[i];
+				intent.putExtra(key, values);
+				break;
+			}
+			case AmarinoIntent.LONG_ARRAY_EXTRA: {
+				long[] values = new long[mSize];
+				System.arraycopy(mLongs, 0, values, 0, mSize);
+				intent.putExtra(key, values);
+				break;
+			}
+			case AmarinoIntent.FLOAT_ARRAY_EXTRA: {
+				float[] values = new float[mSize];
+				for (int i = 0; i < mSize; i++) values[i] = (float) mDoubles[i];
+				intent.putExtra(key, values);
+				break;
+			}
+			case AmarinoIntent.DOUBLE_ARRAY_EXTRA: {
+				double[] values = new double[mSize];
+				System.arraycopy(mDoubles, 0, values, 0, mSize);
+				intent.putExtra(key, values);
+				break;
+			}
+			case AmarinoIntent.STRING_ARRAY_EXTRA: {
+				String[] values = new String[mSize];
+				System.arraycopy(mStrings, 0, values, 0, mSize);
+				intent.putExtra(key, values);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Reads what {@link #putInto(Intent)} stored.
+	 *
+	 * @return the data, or null if the extras do not hold typed data
+	 */
+	static AmarinoData fromBundle(Bundle b) {
+		final int type = b.getInt(AmarinoIntent.EXTRA_TYPED_DATA_TYPE, 0);
+		final Object value = b.get(AmarinoIntent.EXTRA_TYPED_DATA);
+		if (type == 0 || value == null) return null;
+
+		AmarinoData data = new AmarinoData();
+		data.reset(type);
+
+		if (value instanceof Boolean) data.addLong(((Boolean) value) ? 1 : 0);
+		else if (value instanceof Character) data.addLong((Character) value);
+		else if (value instanceof Float || value instanceof Double) data.addDouble(((Number) value).doubleValue());
+		else if (value instanceof Number) data.addLong(((Number) value).longValue());
+		else if (value instanceof String) data.addString((String) value);
+		else if (value instanceof boolean[]) for (boolean v : (boolean[]) value) data.addLong(v ? 1 : 0);
+		else if (value instanceof byte[]) for (byte v : (byte[]) value) data.addLong(v);
+		else if (value instanceof char[]) for (char v : (char[]) value) data.addLong(v);
+		else if (value instanceof short[]) for (short v : (short[]) value) data.addLong(v);
+		else if (value instanceof int[]) for (int v : (int[]) value) data.addLong(v);
+		else if (value instanceof long[]) for (long v : (long[]) value) data.addLong(v);
+		else if (value instanceof float[]) for (float v : (float[]) value) data.addDouble(v);
+		else if (value instanceof double[]) for (double v : (double[]) value) data.addDouble(v);
+		else if (value instanceof String[]) for (String v : (String[]) value) data.addString(v);
+		else return null;
+
+		return data;
+	}
+
+	private boolean isFloatingPoint() {
+		return mType == AmarinoIntent.FLOAT_EXTRA || mType == AmarinoIntent.FLOAT_ARRAY_EXTRA
+				|| mType == AmarinoIntent.DOUBLE_EXTRA || mType == AmarinoIntent.DOUBLE_ARRAY_EXTRA;
+	}
+
+	private boolean isText() {
+		return mType == AmarinoIntent.STRING_EXTRA || mType == AmarinoIntent.STRING_ARRAY_EXTRA;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= mSize)
+			throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+	}
+}
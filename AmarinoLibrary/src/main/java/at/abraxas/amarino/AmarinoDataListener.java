@@ -0,0 +1,15 @@
+package at.abraxas.amarino;
+
+/**
+ * Implemented by an {@link AmarinoListener} which wants typed messages already decoded.
+ *
+ * <p>Typed messages are still passed to {@link AmarinoListener#onReceiveData(String, String)} as well.</p>
+ */
+public interface AmarinoDataListener {
+
+	/**
+	 * @param data the decoded values, only valid during the call
+	 * @param from the address of the device which sent them
+	 */
+	void onReceiveTypedData(AmarinoData data, String from);
+}
@@ -0,0 +1,39 @@
+package at.abraxas.amarino;
+
+/**
+ * Backpressure-aware streams in the shape of Reactive Streams and java.util.concurrent.Flow,
+ * which is not available on Android. See {@link AmarinoHelper#receivedData(String)},
+ * {@link AmarinoHelper#connectionEvents()} and {@link AmarinoHelper#nearbyDevices()}.
+ *
+ * <p>A subscriber only gets as many items as it requested. Signals of one subscription never
+ * overlap, but may come from the reading thread of a connection, the main thread or the thread
+ * calling {@link Subscription#request(long)}.</p>
+ */
+public final class AmarinoFlow {
+
+	private AmarinoFlow() {
+	}
+
+	public interface Publisher<T> {
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	public interface Subscriber<T> {
+		void onSubscribe(Subscription subscription);
+
+		void onNext(T item);
+
+		void onError(Throwable throwable);
+
+		void onComplete();
+	}
+
+	public interface Subscription {
+		/**
+		 * Asks for n more items, {@link Long#MAX_VALUE} asks for all of them.
+		 */
+		void request(long n);
+
+		void cancel();
+	}
+}
@@ -3,12 +3,13 @@ package at.abraxas.amarino;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Process;
 
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This is the only main interface to communicate with Amarino Service.
@@ -16,25 +17,243 @@ import java.util.Map;
  */
 public class AmarinoHelper {
 
-	private static List<AmarinoListener> mListeners = new LinkedList<AmarinoListener>();
+	// iterated without locking by the main thread and the reading threads of the service
+	private static final CopyOnWriteArrayList<ListenerRegistration> mListeners =
+			new CopyOnWriteArrayList<ListenerRegistration>();
+	// held while listeners are registered, replaced or unregistered
+	private static final Object sRegistrationLock = new Object();
+	// registered listeners without subscriptions, read by the reading threads of the service
+	private static volatile int sUnfilteredListeners = 0;
 
 	public static void setAmarinoDebugMode(boolean enable) {
 		Logger.DEBUG = enable;
 	}
 
+	/**
+	 * @return the settings new connections start with, unless their address has been configured
+	 */
+	public static ConnectionSettings getDefaultConnectionSettings() {
+		return ConnectionSettings.getDefaults();
+	}
+
+	/**
+	 * Settings of one Bluetooth device, e.g. to switch it to binary frames:
+	 * <pre>AmarinoHelper.getConnectionSettings(address).setFrameFormat(ConnectionSettings.FRAME_FORMAT_BINARY);</pre>
+	 *
+	 * @param address the Bluetooth device
+	 * @return the settings, or null if the address is invalid
+	 */
+	public static ConnectionSettings getConnectionSettings(String address) {
+		if (!Utils.isCorrectAddressFormat(address)) return null;
+		return ConnectionSettings.get(address);
+	}
+
+	/**
+	 * Sending never waits for the Bluetooth link, frames are queued per device and written
+	 * in the background. A frame sent while the queue is full is rejected unless another
+	 * {@link ConnectionSettings#setWriteQueuePolicy(int)} is set.
+	 *
+	 * @param address the Bluetooth device
+	 * @return the number of frames waiting to be written, -1 if the device is not connected
+	 */
+	public static int getOutboundQueueDepth(String address) {
+		return AmarinoService.getOutboundQueueDepth(address);
+	}
+
+	/**
+	 * @param address the Bluetooth device
+	 * @return the current counters of the connection, or null if the device is not connected
+	 */
+	public static ConnectionStats getConnectionStats(String address) {
+		return AmarinoService.getConnectionStats(address);
+	}
+
+	/**
+	 * Round-trip times of the heartbeat, see {@link ConnectionSettings#setHeartbeat(long, long)}.
+	 *
+	 * @param address the Bluetooth device
+	 * @return a snapshot, or null if the device is not connected or has no heartbeat
+	 */
+	public static LatencyStats getLatencyStats(String address) {
+		return AmarinoService.getLatencyStats(address);
+	}
+
+	/**
+	 * Times from connect requests until the connection was established, over all devices.
+	 * See {@link ConnectionSettings#setConnectTimeout(long)}.
+	 *
+	 * @return a snapshot of the most recent connects of this process
+	 */
+	public static LatencyStats getConnectLatencyStats() {
+		return ConnectionManager.getConnectLatencyStats();
+	}
+
+	/**
+	 * Opens a sender for one flag and data type which does not allocate per message, for
+	 * high-rate control loops. Only works in the process of the service.
+	 *
+	 * @param type one of the AmarinoIntent type extras, e.g. {@link AmarinoIntent#FLOAT_EXTRA}
+	 * @return null if the device is not connected
+	 */
+	public static AmarinoChannel openChannel(String address, char flag, int type) {
+		return openChannel(address, flag, type, 1);
+	}
+
+	/**
+	 * @param maxValues the largest array to be sent, the encode buffer is sized for it up front
+	 * @see #openChannel(String, char, int)
+	 */
+	public static AmarinoChannel openChannel(String address, char flag, int type, int maxValues) {
+		if (type < AmarinoIntent.BOOLEAN_EXTRA || type > AmarinoIntent.STRING_ARRAY_EXTRA)
+			throw new IllegalArgumentException("unknown data type " + type);
+		if (!Utils.isCorrectAddressFormat(address)) return null;
+
+		address = address.toUpperCase();
+		if (AmarinoService.writerOf(address) == null) return null;
+		return AmarinoChannel.open(address, flag, type, maxValues);
+	}
+
+	/**
+	 * Writes the data queued for a device right away, instead of waiting for the
+	 * coalescing window. See {@link ConnectionSettings#setCoalescing(long, int)}.
+	 *
+	 * @param address the Bluetooth device
+	 * @return false if the device is not connected
+	 */
+	public static boolean flush(String address) {
+		return AmarinoService.flush(address);
+	}
+
 	public static boolean registerListener(Context context, AmarinoListener listener) {
+		return registerListener(context, listener, DeliveryMode.MAIN);
+	}
+
+	/**
+	 * Registers a listener whose callbacks run on the thread chosen by deliveryMode.
+	 * Registering a listener again changes its delivery mode.
+	 *
+	 * @param deliveryMode one of the {@link DeliveryMode} constants
+	 */
+	public static boolean registerListener(Context context, AmarinoListener listener, int deliveryMode) {
+		if(deliveryMode < DeliveryMode.MAIN || deliveryMode > DeliveryMode.MAILBOX)
+			throw new IllegalArgumentException("unknown delivery mode " + deliveryMode);
+		return register(context, listener, deliveryMode, ListenerRegistration.DEFAULT_CAPACITY,
+				OverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * Registers a listener with a mailbox of its own, see {@link DeliveryMode#MAILBOX}.
+	 *
+	 * @param capacity how many events may wait for the listener
+	 * @param overflowPolicy one of the {@link OverflowPolicy} constants, used when the mailbox is full.
+	 * {@link OverflowPolicy#BLOCK} holds up the thread delivering to the listener, e.g. the reading
+	 * thread of a connection, {@link OverflowPolicy#FAIL} drops the event like DROP_NEWEST.
+	 */
+	public static boolean registerListener(Context context, AmarinoListener listener, int capacity,
+			int overflowPolicy) {
+		if(capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+		if(overflowPolicy < OverflowPolicy.BLOCK || overflowPolicy > OverflowPolicy.FAIL)
+			throw new IllegalArgumentException("unknown overflow policy " + overflowPolicy);
+		return register(context, listener, DeliveryMode.MAILBOX, capacity, overflowPolicy);
+	}
+
+	private static boolean register(Context context, AmarinoListener listener, int deliveryMode,
+			int capacity, int overflowPolicy) {
 		if(context == null || listener == null || listener.getAmarinoReceiver() == null) return false;
 
-		registerReceiver(context, listener.getAmarinoReceiver());
-		mListeners.add(listener);
+		synchronized (sRegistrationLock) {
+			ListenerRegistration registration = new ListenerRegistration(listener, deliveryMode, capacity, overflowPolicy);
+			ListenerRegistration existing = findRegistration(listener);
+			if(existing == null) {
+				registerReceiver(context, listener.getAmarinoReceiver());
+				mListeners.add(registration);
+			} else {
+				// the old registration stops before the new one takes its place, so the listener
+				// is never called on two threads and dispatch sees exactly one of them
+				existing.close();
+				mListeners.set(mListeners.indexOf(existing), registration);
+			}
+			updateUnfilteredListeners();
+		}
 		return true;
 	}
 
 	public static boolean unregisterListener(Context context, AmarinoListener listener) {
 		if(context == null || listener == null || listener.getAmarinoReceiver() == null) return false;
 
-		unregisterReceiver(context, listener.getAmarinoReceiver());
-		return mListeners.remove(listener);
+		synchronized (sRegistrationLock) {
+			unregisterReceiver(context, listener.getAmarinoReceiver());
+			Subscriptions.remove(listener);
+			ListenerRegistration existing = findRegistration(listener);
+			if(existing == null) {
+				updateUnfilteredListeners();
+				return false;
+			}
+			existing.close();
+			mListeners.remove(existing);
+			updateUnfilteredListeners();
+			return true;
+		}
+	}
+
+	/**
+	 * @return the queue depth, dropped events and callback latency of a listener,
+	 * or null if it is not registered
+	 */
+	public static ListenerStats getListenerStats(AmarinoListener listener) {
+		ListenerRegistration r = findRegistration(listener);
+		return (r != null) ? r.getStats() : null;
+	}
+
+	private static ListenerRegistration findRegistration(AmarinoListener listener) {
+		for(ListenerRegistration r : mListeners) {
+			if(r.listener == listener) return r;
+		}
+		return null;
+	}
+
+	/**
+	 * Narrows the received messages a registered listener gets to those of a device starting
+	 * with the given prefix, e.g. the flag an Arduino sketch puts in front of one sensor's values.
+	 * Once a listener has a subscription it only gets messages matching one of its subscriptions.
+	 *
+	 * <p>Matching is done once per message by the service, so listeners are not called for
+	 * messages they would discard anyway.</p>
+	 *
+	 * @param address the device, null for all devices
+	 * @param prefix the start of the messages, null or empty for all messages of the device
+	 */
+	public static void subscribe(AmarinoListener listener, String address, String prefix) {
+		if (listener == null) return;
+
+		Subscriptions.add(listener, address, prefix);
+		updateUnfilteredListeners();
+	}
+
+	/**
+	 * Subscribes to the messages of a device starting with the given flag,
+	 * see {@link #subscribe(AmarinoListener, String, String)}.
+	 */
+	public static void subscribe(AmarinoListener listener, String address, char flag) {
+		subscribe(listener, address, String.valueOf(flag));
+	}
+
+	/**
+	 * Removes all subscriptions of the listener, it gets every received message again.
+	 */
+	public static void unsubscribe(AmarinoListener listener) {
+		Subscriptions.remove(listener);
+		updateUnfilteredListeners();
+	}
+
+	private static void updateUnfilteredListeners() {
+		synchronized (sRegistrationLock) {
+			int count = 0;
+			for (ListenerRegistration r : mListeners) {
+				if (!Subscriptions.isSubscribed(r.listener)) count++;
+			}
+			sUnfilteredListeners = count;
+		}
 	}
 
 	private static void registerReceiver(Context context, AmarinoReceiver receiver) {
@@ -48,12 +267,16 @@ public class AmarinoHelper {
 				AmarinoIntent.ACTION_DISCONNECTED));
 		context.registerReceiver(receiver, new IntentFilter(
 				AmarinoIntent.ACTION_PAIRING_REQUESTED));
+		context.registerReceiver(receiver, new IntentFilter(
+				AmarinoIntent.ACTION_RECONNECTING));
 		context.registerReceiver(receiver, new IntentFilter(
 				AmarinoIntent.ACTION_RECEIVED));
 		context.registerReceiver(receiver, new IntentFilter(
 				AmarinoIntent.ACTION_CONNECTED_DEVICES));
 		context.registerReceiver(receiver, new IntentFilter(
 				AmarinoIntent.ACTION_NEARBY_DEVICES));
+		context.registerReceiver(receiver, new IntentFilter(
+				AmarinoIntent.ACTION_DEVICE_FOUND));
 	}
 
 	private static void unregisterReceiver(Context context, AmarinoReceiver receiver) {
@@ -63,7 +286,7 @@ public class AmarinoHelper {
 	}
 
 	static void transferMessage(String message, Bundle b) {
-		if(message == null || mListeners == null || b == null) return;
+		if(message == null || b == null) return;
 
 		String from = b.getString(AmarinoIntent.EXTRA_DEVICE_ADDRESS);
 
@@ -71,48 +294,45 @@ public class AmarinoHelper {
 
 			Logger.d("Device Connected");
 
-			for(AmarinoListener l : mListeners) {
-				if(l != null) {
-					l.onConnectResult(AmarinoListener.CONNECT_SUCCEDED, from);
-				}
-			}
+			deliver(ListenerEvent.connectResult(AmarinoListener.CONNECT_SUCCEDED, from));
 		} else if (message.equals(AmarinoIntent.ACTION_CONNECTION_FAILED)) {
 
 			Logger.d("Device Connection Failed");
 
-			for(AmarinoListener l : mListeners) {
-				if(l != null) {
-					l.onConnectResult(AmarinoListener.CONNECT_FAILED, from);
-				}
-			}
+			deliver(ListenerEvent.connectResult(AmarinoListener.CONNECT_FAILED, from));
 		} else if (message.equals(AmarinoIntent.ACTION_DISCONNECTED)) {
 
 			Logger.d("Device Connection Disconnected");
 
-			for(AmarinoListener l : mListeners) {
-				if(l != null) {
-					l.onDisconnectResult(from);
-				}
-			}
+			deliver(ListenerEvent.disconnected(from));
 		} else if (message.equals(AmarinoIntent.ACTION_PAIRING_REQUESTED)) {
 
 			Logger.d("Device Request Pairing");
 
-			for(AmarinoListener l : mListeners) {
-				if(l != null) {
-					l.onConnectResult(AmarinoListener.CONNECT_PAIRING_REQUESTED, from);
-				}
-			}
-		} else if (message.equals(AmarinoIntent.ACTION_RECEIVED)) {
+			deliver(ListenerEvent.connectResult(AmarinoListener.CONNECT_PAIRING_REQUESTED, from));
+		} else if (message.equals(AmarinoIntent.ACTION_RECONNECTING)) {
 
-			Logger.d("Device Sent Something");
+			Logger.d("Device Reconnecting");
 
-			String data = b.getString(AmarinoIntent.EXTRA_DATA);
+			deliver(ListenerEvent.connectResult(AmarinoListener.CONNECT_RECONNECTING, from));
+		} else if (message.equals(AmarinoIntent.ACTION_RECEIVED)) {
 
-			for(AmarinoListener l : mListeners) {
-				if(l != null) {
-					l.onReceiveData(data, from);
-				}
+			// already handed to our listeners by the service, see ReceiveDispatcher
+			if (b.getInt(AmarinoIntent.EXTRA_DISPATCHED_PID, 0) == Process.myPid()) return;
+
+			String[] batch = b.getStringArray(AmarinoIntent.EXTRA_DATA_BATCH);
+			if (batch != null) {
+				String[] sources = b.getStringArray(AmarinoIntent.EXTRA_DEVICE_ADDRESSES);
+				long[] timestamps = b.getLongArray(AmarinoIntent.EXTRA_TIMESTAMPS);
+				if (sources == null || timestamps == null
+						|| sources.length != batch.length || timestamps.length != batch.length) return;
+
+				Logger.d("Device Sent " + batch.length + " Messages");
+				deliver(ListenerEvent.receivedBatch(batch, null, timestamps, sources));
+			} else {
+				String data = b.getString(AmarinoIntent.EXTRA_DATA);
+				Logger.d("Device Sent Something");
+				deliver(ListenerEvent.received(data, AmarinoData.fromBundle(b), from, Subscriptions.match(from, data)));
 			}
 		} else if (message.equals(AmarinoIntent.ACTION_CONNECTED_DEVICES)) {
 
@@ -120,11 +340,7 @@ public class AmarinoHelper {
 
 			String[] devs = b.getStringArray(AmarinoIntent.EXTRA_DEVICE_ADDRESSES);
 
-			for(AmarinoListener l : mListeners) {
-				if(l != null) {
-					l.onReceiveConnectedDevices(devs);
-				}
-			}
+			deliver(ListenerEvent.connectedDevices(devs));
 		} else if (message.equals(AmarinoIntent.ACTION_NEARBY_DEVICES)) {
 
 			Logger.d("Received Nearby Devices");
@@ -141,14 +357,120 @@ public class AmarinoHelper {
 				}
 			}
 
-			for(AmarinoListener l : mListeners) {
-				if(l != null) {
-					l.onReceiveNearbyDevices(devs);
-				}
-			}
+			deliver(ListenerEvent.nearbyDevices(devs));
+		} else if (message.equals(AmarinoIntent.ACTION_DEVICE_FOUND)) {
+
+			Logger.d("Device Found");
+
+			deliver(ListenerEvent.deviceFound(b.getString(AmarinoIntent.EXTRA_DEVICE_NAME), from));
+		}
+	}
+
+	static boolean hasListeners() {
+		return !mListeners.isEmpty();
+	}
+
+	/**
+	 * @return whether a registered listener wants every message, regardless of subscriptions
+	 */
+	static boolean hasUnfilteredListeners() {
+		return sUnfilteredListeners > 0;
+	}
+
+	/**
+	 * Hands the event to every listener which wants it, on the thread of its {@link DeliveryMode}.
+	 * Safe to call from any thread.
+	 */
+	static void deliver(ListenerEvent event) {
+		for(ListenerRegistration r : mListeners) {
+			if(event.isWantedBy(r.listener)) r.deliver(event);
 		}
 	}
 
+	/**
+	 * Returns the ring received messages of the given device are put into, for a consumer thread
+	 * which wants them with low latency and without allocations instead of through listeners.
+	 * Set its size with {@link ConnectionSettings#setInboundRingCapacity(int)} before connecting.
+	 *
+	 * @return the ring, or null if the address is invalid or no ring capacity is configured
+	 */
+	public static InboundRing getInboundRing(String address) {
+		if (!Utils.isCorrectAddressFormat(address)) return null;
+		if (ConnectionSettings.peek(address).getInboundRingCapacity() == 0) return null;
+		return InboundRing.get(address);
+	}
+
+	/**
+	 * Messages received from a device as a stream with backpressure: a subscriber which requests
+	 * fewer messages than arrive makes the service stop reading from the device once 64 messages
+	 * wait for it, until it requests more. A subscriber which does not request for a second loses its
+	 * oldest message, so reading goes on slowly. Only works in the process of the service.
+	 *
+	 * @param address the device, null for all devices
+	 */
+	public static AmarinoFlow.Publisher<ReceivedMessage> receivedData(String address) {
+		return receivedData(address, Streams.DATA_BUFFER_SIZE);
+	}
+
+	/**
+	 * Like {@link #receivedData(String)}, with the number of messages which may wait for a subscriber
+	 * before reading from the device stops.
+	 */
+	public static AmarinoFlow.Publisher<ReceivedMessage> receivedData(String address, int bufferSize) {
+		if (bufferSize < 1) throw new IllegalArgumentException("buffer size must be positive");
+		return Streams.receivedData(address, bufferSize);
+	}
+
+	/**
+	 * Connection changes of all devices as a stream. A subscriber which falls behind loses the oldest
+	 * events beyond 16. Only works in the process of the service.
+	 */
+	public static AmarinoFlow.Publisher<ConnectionEvent> connectionEvents() {
+		return Streams.connectionEvents();
+	}
+
+	/**
+	 * Results of {@link #getNearbyDevices(Context)} as a stream of name to address maps.
+	 * Only works in the process of the service.
+	 */
+	public static AmarinoFlow.Publisher<Map<String, String>> nearbyDevices() {
+		return Streams.nearbyDevices();
+	}
+
+	/**
+	 * Delivers received messages in batches instead of one by one, which saves a broadcast and
+	 * a main thread callback per message for high message rates.
+	 *
+	 * <p>A batch is delivered when the window since its first message is over, or when it holds
+	 * maxMessages messages. Listeners implementing {@link AmarinoBatchListener} get a whole batch
+	 * at once. Other apps receive one {@link AmarinoIntent#ACTION_RECEIVED} per batch with
+	 * {@link AmarinoIntent#EXTRA_DATA_BATCH}; typed values are only delivered in this process.</p>
+	 *
+	 * @param windowMillis how long the first message of a batch may wait, 0 turns batching off
+	 * @param maxMessages the maximum number of messages per batch
+	 */
+	public static void setReceiveBatching(long windowMillis, int maxMessages) {
+		ReceiveBatcher.configure(windowMillis, maxMessages);
+	}
+
+	/**
+	 * Binds the service, the connection gets an {@link AmarinoService.AmarinoServiceBinder} to send
+	 * data with direct calls. Only works in the process of the service.
+	 *
+	 * @return false if the service could not be bound
+	 */
+	public static boolean bindService(Context context, ServiceConnection connection) {
+		if (context == null || connection == null) return false;
+
+		return context.bindService(new Intent(context, AmarinoService.class), connection, Context.BIND_AUTO_CREATE);
+	}
+
+	public static void unbindService(Context context, ServiceConnection connection) {
+		if (context == null || connection == null) return;
+
+		context.unbindService(connection);
+	}
+
 	public static boolean connect(Context context, String address) {
 		if (context == null || !Utils.isCorrectAddressFormat(address))
 			return false;
@@ -161,6 +483,56 @@ public class AmarinoHelper {
 		return true;
 	}
 
+	/**
+	 * Connects several devices in parallel. When every one of them is connected or failed,
+	 * {@link AmarinoIntent#ACTION_CONNECT_ALL_FINISHED} is broadcast with the time it took.
+	 */
+	public static boolean connect(Context context, String[] addresses) {
+		if (context == null || addresses == null) return false;
+
+		Intent intent = new Intent(context, AmarinoService.class);
+		intent.setAction(AmarinoIntent.ACTION_CONNECT);
+		intent.putExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESSES, addresses);
+		context.startService(intent);
+
+		return true;
+	}
+
+	/**
+	 * Scans and connects the given devices as soon as the scan sees them.
+	 */
+	public static boolean scanAndConnect(Context context, String[] addresses) {
+		if (context == null || addresses == null) return false;
+
+		Intent intent = new Intent(context, AmarinoService.class);
+		intent.setAction(AmarinoIntent.ACTION_SCAN_AND_CONNECT);
+		intent.putExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESSES, addresses);
+		context.startService(intent);
+
+		return true;
+	}
+
+	/**
+	 * Scans and connects the first device whose friendly name matches the regular expression.
+	 */
+	public static boolean scanAndConnect(Context context, String namePattern) {
+		if (context == null || namePattern == null) return false;
+
+		Intent intent = new Intent(context, AmarinoService.class);
+		intent.setAction(AmarinoIntent.ACTION_SCAN_AND_CONNECT);
+		intent.putExtra(AmarinoIntent.EXTRA_NAME_PATTERN, namePattern);
+		context.startService(intent);
+
+		return true;
+	}
+
+	/**
+	 * @param max how many devices the service connects at the same time, 4 by default
+	 */
+	public static void setMaxParallelConnects(int max) {
+		AmarinoService.setMaxParallelConnects(max);
+	}
+
 	public static boolean disconnect(Context context, String address) {
 		if (address == null || context == null) return false;
 
@@ -172,8 +544,13 @@ public class AmarinoHelper {
 		return true;
 	}
 
+	/**
+	 * Scans for devices. Listeners implementing {@link AmarinoScanListener} get each device as soon
+	 * as it is seen. Requests while a scan is running are answered by that scan, requests within the
+	 * ttl of the last scan by its result, see {@link #setNearbyDevicesTtl(long)}.
+	 */
 	public static boolean getNearbyDevices(Context context) {
-		if (context == null || mListeners == null) return false;
+		if (context == null) return false;
 
 		Intent intent = new Intent(context, AmarinoService.class);
 		intent.setAction(AmarinoIntent.ACTION_GET_NEARBY_DEVICES);
@@ -182,6 +559,14 @@ public class AmarinoHelper {
 		return true;
 	}
 
+	/**
+	 * @param ttlMillis how long the result of a scan answers {@link #getNearbyDevices(Context)},
+	 *            10 seconds by default, 0 scans every time
+	 */
+	public static void setNearbyDevicesTtl(long ttlMillis) {
+		NearbyDevices.setTtl(ttlMillis);
+	}
+
 	/**
 	 * Sends a boolean value to Arduino
 	 *
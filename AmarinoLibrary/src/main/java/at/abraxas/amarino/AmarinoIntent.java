@@ -25,9 +25,10 @@ public interface AmarinoIntent {
 	// =============================
 
 	/**
-	 * Extras: EXTRA_DEVICE_ADDRESS
+	 * Extras: EXTRA_DEVICE_ADDRESS, or EXTRA_DEVICE_ADDRESSES to connect several devices in parallel.
 	 *
 	 * Return: ACTION_CONNECTED, ACTION_DISCONNECTED, ACTION_CONNECTION_FAILED, ACTION_PAIRING_REQUESTED.
+	 * With EXTRA_DEVICE_ADDRESSES also ACTION_CONNECT_ALL_FINISHED.
 	 */
 	public static final String ACTION_CONNECT = "amarino.intent.action.CONNECT";
 
@@ -38,6 +39,16 @@ public interface AmarinoIntent {
 	 */
 	public static final String ACTION_DISCONNECT = "amarino.intent.action.DISCONNECT";
 
+	/**
+	 * Scans and connects the wanted devices as soon as they are seen, without waiting for the scan
+	 * to finish.
+	 *
+	 * Extras: EXTRA_DEVICE_ADDRESSES and/or EXTRA_NAME_PATTERN.
+	 *
+	 * Return: ACTION_DEVICE_FOUND, ACTION_CONNECTED, ACTION_CONNECTION_FAILED also for addresses not found.
+	 */
+	public static final String ACTION_SCAN_AND_CONNECT = "amarino.intent.action.SCAN_AND_CONNECT";
+
 	/**
 	 * Extras: EXTRA_DEVICE_ADDRESS, EXTRA_DATA, EXTRA_DATA_TYPE, EXTRA_FLAG.
 	 *
@@ -61,6 +72,12 @@ public interface AmarinoIntent {
 
 	/**
 	 * Extras: EXTRA_DEVICE_ADDRESS, EXTRA_DATA, EXTRA_DATA_TYPE.
+	 *
+	 * Typed messages additionally carry EXTRA_TYPED_DATA and EXTRA_TYPED_DATA_TYPE.
+	 * EXTRA_DISPATCHED_PID is set if listeners of that process already got the message directly.
+	 *
+	 * With batching enabled the extras are EXTRA_DATA_BATCH, EXTRA_TIMESTAMPS and
+	 * EXTRA_DEVICE_ADDRESSES instead, parallel arrays with one entry per message.
 	 */
 	public static final String ACTION_RECEIVED = "amarino.intent.action.RECEIVED";
 
@@ -84,6 +101,20 @@ public interface AmarinoIntent {
 	 */
 	public static final String ACTION_PAIRING_REQUESTED = "amarino.intent.action.PAIRING_REQUESTED";
 
+	/**
+	 * The connection dropped, a reconnect attempt is scheduled.
+	 *
+	 * Extras: EXTRA_DEVICE_ADDRESS, EXTRA_ATTEMPT, EXTRA_DELAY_MILLIS.
+	 */
+	public static final String ACTION_RECONNECTING = "amarino.intent.action.RECONNECTING";
+
+	/**
+	 * Every device of an ACTION_CONNECT with EXTRA_DEVICE_ADDRESSES is connected or failed.
+	 *
+	 * Extras: EXTRA_DEVICE_ADDRESSES of the connected devices, EXTRA_ELAPSED_MILLIS.
+	 */
+	public static final String ACTION_CONNECT_ALL_FINISHED = "amarino.intent.action.CONNECT_ALL_FINISHED";
+
 	/**
 	 * Extras: EXTRA_DEVICE_ADDRESSES.
 	 */
@@ -94,6 +125,13 @@ public interface AmarinoIntent {
 	 */
 	public static final String ACTION_NEARBY_DEVICES = "amarino.intent.action.ACTION_NEARBY_DEVICES";
 
+	/**
+	 * A device seen by a running scan, before ACTION_NEARBY_DEVICES.
+	 *
+	 * Extras: EXTRA_DEVICE_NAME, EXTRA_DEVICE_ADDRESS.
+	 */
+	public static final String ACTION_DEVICE_FOUND = "amarino.intent.action.DEVICE_FOUND";
+
 	// ====================
 	// == Common Extras. ==
 	// ====================
@@ -108,6 +146,18 @@ public interface AmarinoIntent {
 	 */
 	public static final String EXTRA_DEVICE_ADDRESSES = "amarino.intent.extra.DEVICE_ADDRESSES";
 
+	/**
+	 * Type: String.
+	 */
+	public static final String EXTRA_DEVICE_NAME = "amarino.intent.extra.DEVICE_NAME";
+
+	/**
+	 * A regular expression the whole friendly name has to match.
+	 *
+	 * Type: String.
+	 */
+	public static final String EXTRA_NAME_PATTERN = "amarino.intent.extra.NAME_PATTERN";
+
 	/**
 	 * Type: String.
 	 */
@@ -130,6 +180,60 @@ public interface AmarinoIntent {
 	 */
 	public static final String EXTRA_DATA_TYPE = "amarino.intent.extra.DATA_TYPE";
 
+	/**
+	 * Decoded values of a typed message from Arduino, see {@link AmarinoData}.
+	 *
+	 * Type: the Java type matching EXTRA_TYPED_DATA_TYPE, e.g. int[] for INT_ARRAY_EXTRA.
+	 */
+	public static final String EXTRA_TYPED_DATA = "amarino.intent.extra.TYPED_DATA";
+
+	/**
+	 * Type: Amarino Type (int).
+	 */
+	public static final String EXTRA_TYPED_DATA_TYPE = "amarino.intent.extra.TYPED_DATA_TYPE";
+
+	/**
+	 * Messages of a batch, see AmarinoHelper.setReceiveBatching.
+	 *
+	 * Type: String array.
+	 */
+	public static final String EXTRA_DATA_BATCH = "amarino.intent.extra.DATA_BATCH";
+
+	/**
+	 * When the messages of a batch were received, in milliseconds since the epoch.
+	 *
+	 * Type: long array.
+	 */
+	public static final String EXTRA_TIMESTAMPS = "amarino.intent.extra.TIMESTAMPS";
+
+	/**
+	 * The number of a reconnect attempt, starting at 1.
+	 *
+	 * Type: int.
+	 */
+	public static final String EXTRA_ATTEMPT = "amarino.intent.extra.ATTEMPT";
+
+	/**
+	 * How long until the next attempt in milliseconds.
+	 *
+	 * Type: long.
+	 */
+	public static final String EXTRA_DELAY_MILLIS = "amarino.intent.extra.DELAY_MILLIS";
+
+	/**
+	 * How long an operation took in milliseconds.
+	 *
+	 * Type: long.
+	 */
+	public static final String EXTRA_ELAPSED_MILLIS = "amarino.intent.extra.ELAPSED_MILLIS";
+
+	/**
+	 * Process id of the service, set if it handed the message to its own listeners directly.
+	 *
+	 * Type: int.
+	 */
+	public static final String EXTRA_DISPATCHED_PID = "amarino.intent.extra.DISPATCHED_PID";
+
 	// ==================
 	// == Type Extras. ==
 	// ==================
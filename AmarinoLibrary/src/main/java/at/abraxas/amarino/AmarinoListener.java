@@ -7,6 +7,8 @@ public interface AmarinoListener {
 	public static final int CONNECT_SUCCEDED          = 10;
 	public static final int CONNECT_FAILED            = 11;
 	public static final int CONNECT_PAIRING_REQUESTED = 12;
+	/** The connection dropped and is being reconnected, see ConnectionSettings.setReconnectPolicy */
+	public static final int CONNECT_RECONNECTING      = 13;
 
 	void onConnectResult(int result, String from);
 
@@ -0,0 +1,14 @@
+package at.abraxas.amarino;
+
+/**
+ * Implemented by an {@link AmarinoListener} which wants nearby devices one by one while a scan
+ * is running, before {@link AmarinoListener#onReceiveNearbyDevices(java.util.Map)} reports all of them.
+ */
+public interface AmarinoScanListener {
+
+	/**
+	 * Called once per device and scan. Not called when the devices are answered from the cache,
+	 * see {@link AmarinoHelper#setNearbyDevicesTtl(long)}.
+	 */
+	void onDeviceFound(String name, String address);
+}
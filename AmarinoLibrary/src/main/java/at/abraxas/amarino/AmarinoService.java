@@ -5,23 +5,34 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.PatternSyntaxException;
 
 import it.gerdavax.easybluetooth.BtSocket;
 import it.gerdavax.easybluetooth.LocalDevice;
-import it.gerdavax.easybluetooth.ReadyListener;
 import it.gerdavax.easybluetooth.RemoteDevice;
 import it.gerdavax.easybluetooth.ScanListener;
 
@@ -33,23 +44,80 @@ public class AmarinoService extends Service {
 	private static final int ACTIVE_CONNECTIONS = 2;
 	private static final int NO_CONNECTIONS = 3;
 
+	// how long a stopped scan waits for the library to report its end
+	private static final long STOP_TIMEOUT_MILLIS = 15000;
+
+	// how long onDestroy waits for each reading thread to stop
+	private static final long READER_JOIN_MILLIS = 200;
+	// how long a reconnect waits for the writer of the lost connection to stop
+	private static final long WRITER_JOIN_MILLIS = 500;
+	// how long a cached channel is tried before SDP if connects have no timeout
+	private static final long KNOWN_CHANNEL_TIMEOUT_MILLIS = 5000;
+
+	// the running service, used by AmarinoHelper to query connections of its own process
+	private static volatile AmarinoService sInstance;
+
 	private IBinder mBinder;
 
-	private LocalDevice mLocalDevice;
+	// the local adapter, shared by connects and scans
+	private LocalDeviceSession mLocalDevice;
+
+	// how each device was reached last time
+	private ChannelCache mChannels;
+
+	// changed by the connect threads, the reading threads and the main thread, keys are upper case
+	private ConcurrentHashMap<String, ConnectedThread> mConnections;
 
-	private HashMap<String, ConnectedThread> mConnections;
+	private ConnectionManager mConnectionManager;
 
-	private int mServiceState;
+	// devices whose connection dropped and which are being reconnected, keys are upper case
+	private final ConcurrentHashMap<String, Reconnect> mReconnects = new ConcurrentHashMap<String, Reconnect>();
+	private final Random mRandom = new Random();
+	private Handler mHandler;
+
+	private volatile int mServiceState;
+
+	// only used from the main thread, see forwardDataToArduino
+	private final FrameEncoder mEncoder = new FrameEncoder();
+
+	// one encoder per calling thread, see AmarinoServiceBinder
+	private final ThreadLocal<FrameEncoder> mBinderEncoders = new ThreadLocal<FrameEncoder>() {
+		@Override
+		protected FrameEncoder initialValue() {
+			return new FrameEncoder();
+		}
+	};
+
+	private ReceiveBatcher mBatcher;
+
+	// the running scan, further requests wait for its result
+	private final Object mScanLock = new Object();
+	private volatile Scan mScan;
+	// devices to connect as soon as the running scan finds them
+	private final CopyOnWriteArrayList<ScanTarget> mScanTargets = new CopyOnWriteArrayList<ScanTarget>();
+	// requests waiting for a stopped scan to end, guarded by mScanLock
+	private final List<ScanTarget> mQueuedScanTargets = new ArrayList<ScanTarget>();
+	private boolean mQueuedScanReport;
 
 	@Override
 	public void onCreate() {
 		super.onCreate();
 
 		mBinder = new AmarinoServiceBinder();
+		mLocalDevice = new LocalDeviceSession(this);
+		mChannels = new ChannelCache(this);
+		mBatcher = new ReceiveBatcher(this);
+		mHandler = new Handler();
+		sInstance = this;
 
 		mServiceState = NO_CONNECTIONS;
-		// most ppl will only use one Bluetooth device, thus lets start with capacity 1
-		mConnections = new HashMap<String, ConnectedThread>(1);
+		mConnections = new ConcurrentHashMap<String, ConnectedThread>();
+		mConnectionManager = new ConnectionManager(new ConnectionManager.Callback() {
+			@Override
+			public void onGroupFinished(String[] connected, long elapsedMillis) {
+				sendConnectAllFinished(connected, elapsedMillis);
+			}
+		});
 
 		IntentFilter filter = new IntentFilter(AmarinoIntent.ACTION_SEND);
 		registerReceiver(receiver, filter);
@@ -83,7 +151,33 @@ public class AmarinoService extends Service {
 			return START_NOT_STICKY;
 		}
 
+		if (action.equals(AmarinoIntent.ACTION_SCAN_AND_CONNECT)) {
+			ScanTarget target;
+			try {
+				target = new ScanTarget(intent.getStringArrayExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESSES),
+						intent.getStringExtra(AmarinoIntent.EXTRA_NAME_PATTERN));
+			} catch (PatternSyntaxException e) {
+				Logger.d(TAG, "invalid EXTRA_NAME_PATTERN: " + e.getMessage());
+				return START_NOT_STICKY;
+			}
+			if (target.isEmpty()) {
+				Logger.d(TAG, "ACTION_SCAN_AND_CONNECT without valid addresses or name pattern");
+				return START_NOT_STICKY;
+			}
+			mServiceState = BUSY;
+			scanAndConnect(target);
+			return START_STICKY;
+		}
+
 		/* --- CONNECT and DISCONNECT part --- */
+		String[] addresses = intent.getStringArrayExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESSES);
+		if (addresses != null && AmarinoIntent.ACTION_CONNECT.equals(action)) {
+			Logger.d(TAG, "ACTION_CONNECT request received for " + addresses.length + " devices");
+			mServiceState = BUSY;
+			connectAll(addresses);
+			return START_STICKY;
+		}
+
 		String address = intent.getStringExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESS);
 		if (address == null) {
 			Logger.d(TAG, "EXTRA_DEVICE_ADDRESS not found!");
@@ -99,6 +193,7 @@ public class AmarinoService extends Service {
 			sendConnectionFailed(address);
 			shutdownServiceIfNecessary();
 		} else {
+			address = address.toUpperCase();
 
 			if (AmarinoIntent.ACTION_CONNECT.equals(action)) {
 				Logger.d(TAG, "ACTION_CONNECT request received");
@@ -121,19 +216,40 @@ public class AmarinoService extends Service {
 			return;
 		}
 
-		String message = MessageBuilder.getMessage(intent);
-		if (message == null) return;
+		// binary frames are opt-in per connection, types without binary form fall back to text
+		final ConnectionWriter writer = getWriter(address.toUpperCase());
+		final boolean binary = writer != null
+				&& ConnectionSettings.peek(address).getFrameFormat() == ConnectionSettings.FRAME_FORMAT_BINARY
+				&& mEncoder.encodeBinary(intent);
+
+		if (!binary && !mEncoder.encode(intent)) return;
 
-		// cutoff leading flag and ACK_FLAG for logger
-		Logger.d(TAG, getString(R.string.service_message_to_send, message.substring(1, message.length() - 1)));
+		final byte[] message = mEncoder.getBuffer();
+		final int length = mEncoder.getLength();
 
-		try {
-			sendData(address, message.getBytes("ISO-8859-1"));
-		} catch (UnsupportedEncodingException e) {
-			// use default encoding as fallback alternative if encoding ISO 8859-1 is not possible
-			Logger.d(TAG, "Encoding message using ISO-8859-1 not possible");
-			sendData(address, message.getBytes());
+		if (Logger.DEBUG) {
+			if (binary) {
+				Logger.d(TAG, "binary frame to send: " + length + " bytes");
+			} else {
+				// cutoff leading flag and ACK_FLAG for logger
+				Logger.d(TAG, getString(R.string.service_message_to_send, Utils.toLatin1String(message, 1, length - 2)));
+			}
 		}
+
+		if (writer != null)
+			writer.enqueue(message, 0, length, intent.getCharExtra(AmarinoIntent.EXTRA_FLAG, '-'));
+	}
+
+	/**
+	 * @return the writer of the connection, or of the dropped connection being reconnected,
+	 * which queues frames until the device is back
+	 */
+	private ConnectionWriter getWriter(String address) {
+		ConnectedThread ct = mConnections.get(address);
+		if (ct != null) return ct.mWriter;
+
+		Reconnect r = mReconnects.get(address);
+		return (r != null) ? r.writer : null;
 	}
 
 
@@ -142,14 +258,26 @@ public class AmarinoService extends Service {
 		super.onDestroy();
 		Logger.d(TAG, "Background service stopped");
 
+		for (String address : mReconnects.keySet()) {
+			giveUpReconnect(address);
+		}
+		unregisterReceiver(receiver);
+		mConnectionManager.shutdown();
 		// we do only stop our service if no connections are active, however Android may kill our service without warning
-		// clean up in case service gets killed from the system due to low memory condition
-		if (mServiceState == ACTIVE_CONNECTIONS) {
-			for (ConnectedThread t : mConnections.values()) {
-				t.cancel();
+		// clean up in case service gets killed from the system due to low memory condition.
+		// Reading threads may still be parsing, let them finish before the batcher goes
+		for (ConnectedThread t : mConnections.values()) {
+			t.cancel();
+			try {
+				t.join(READER_JOIN_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
 			}
 		}
-		unregisterReceiver(receiver);
+		mBatcher.shutdown();
+		mLocalDevice.close();
+		sInstance = null;
 	}
 
 	private void shutdownService() {
@@ -160,7 +288,7 @@ public class AmarinoService extends Service {
 	}
 
 	private void shutdownServiceIfNecessary() {
-		if (mConnections.size() == 0) {
+		if (mConnections.size() == 0 && mReconnects.isEmpty() && !mConnectionManager.isConnecting() && mScan == null) {
 			mServiceState = NO_CONNECTIONS;
 			shutdownService();
 		} else {
@@ -169,82 +297,407 @@ public class AmarinoService extends Service {
 	}
 
 
+	/**
+	 * @param address upper case
+	 */
 	protected void connect(final String address) {
 		if (address == null || mConnections == null || mConnections.containsKey(address)) return;
+		// a connect to this address is already running, its result is reported to everyone
+		if (!mConnectionManager.begin(address)) return;
 
-		mLocalDevice = LocalDevice.getInstance();
-		mLocalDevice.init(this, new ReadyListener() {
+		mLocalDevice.acquire(new LocalDeviceSession.Callback() {
 			@Override
-			public void ready() {
-				RemoteDevice device = mLocalDevice.getRemoteForAddr(address);
-				mLocalDevice.destroy();
-				new ConnectThread(device).start();
+			public void ready(LocalDevice localDevice) {
+				RemoteDevice device = localDevice.getRemoteForAddr(address);
+				mLocalDevice.release();
+				mConnectionManager.execute(new ConnectTask(device, address));
 			}
 		});
 
 	}
 
+	/**
+	 * Connects several devices in parallel, as many at a time as
+	 * {@link AmarinoHelper#setMaxParallelConnects(int)} allows. When all of them are connected or
+	 * failed, {@link AmarinoIntent#ACTION_CONNECT_ALL_FINISHED} tells how long it took.
+	 */
+	protected void connectAll(String[] addresses) {
+		Set<String> pending = new HashSet<String>();
+		List<String> connected = new ArrayList<String>();
+		for (String address : addresses) {
+			if (!Utils.isCorrectAddressFormat(address)) {
+				Logger.d(TAG, getString(R.string.service_address_invalid, address));
+				sendConnectionFailed(address);
+				continue;
+			}
+			address = address.toUpperCase();
+			if (mConnections.containsKey(address)) {
+				connected.add(address);
+			} else {
+				pending.add(address);
+			}
+		}
+
+		mConnectionManager.addGroup(pending, connected);
+		for (String address : pending) {
+			// connected since we looked, its connect may have finished before the group was added
+			if (mConnections.containsKey(address)) {
+				mConnectionManager.settle(address, true);
+			} else {
+				connect(address);
+			}
+		}
+		if (pending.isEmpty()) shutdownServiceIfNecessary();
+	}
+
+	static void setMaxParallelConnects(int max) {
+		ConnectionManager.setDefaultMaxParallelConnects(max);
+		AmarinoService service = sInstance;
+		if (service != null) service.mConnectionManager.setMaxParallelConnects(max);
+	}
+
 	public void disconnect(final String address) {
-		ConnectedThread ct = mConnections.remove(address);
+		ConnectedThread ct = mConnections.remove(address.toUpperCase());
 		if (ct != null)
 			ct.cancel();
+		// a connect in progress fails
+		mConnectionManager.cancel(address.toUpperCase());
+		giveUpReconnect(address.toUpperCase());
 
-		// end service if this was the last connection to disconnect
-		if (mConnections.size() == 0) {
-			mServiceState = NO_CONNECTIONS;
-			shutdownService();
+		shutdownServiceIfNecessary();
+	}
+
+	/**
+	 * Called by the reading thread of a connection when its socket failed.
+	 */
+	private void connectionLost(ConnectedThread ct) {
+		// a newer connection to the same device stays
+		if (!mConnections.remove(ct.mAddress, ct)) {
+			ct.mWriter.close();
+			return;
+		}
+
+		if (ct.mSettings.getReconnectMaxAttempts() > 0) {
+			Reconnect r = new Reconnect(ct.mWriter);
+			ct.detach();
+			mReconnects.put(ct.mAddress, r);
+			scheduleReconnect(ct.mAddress, r);
 		} else {
-			mServiceState = ACTIVE_CONNECTIONS;
+			ct.cancel();
 		}
+		shutdownServiceIfNecessary();
 	}
 
-	public void sendData(final String address, byte[] data) {
-		ConnectedThread ct = mConnections.get(address);
-		if (ct != null)
-			ct.write(data);
+	private void scheduleReconnect(final String address, final Reconnect r) {
+		ConnectionSettings settings = ConnectionSettings.get(address);
+		if (r.attempt >= settings.getReconnectMaxAttempts()) {
+			Logger.d(TAG, "giving up to reconnect " + address + " after " + r.attempt + " attempts");
+			giveUpReconnect(address);
+			return;
+		}
+
+		r.attempt++;
+		long delay = settings.getReconnectDelayMillis(r.attempt, mRandom);
+		sendReconnecting(address, r.attempt, delay);
+
+		r.pending = new Runnable() {
+			@Override
+			public void run() {
+				// unless the reconnect was given up in the meantime
+				if (mReconnects.get(address) == r) connect(address);
+			}
+		};
+		mHandler.postDelayed(r.pending, delay);
+	}
+
+	/**
+	 * Schedules the next attempt if the address is being reconnected.
+	 *
+	 * @return false if the address is not being reconnected
+	 */
+	private boolean retryReconnect(String address) {
+		Reconnect r = mReconnects.get(address);
+		if (r == null) return false;
+
+		scheduleReconnect(address, r);
+		return true;
+	}
+
+	/**
+	 * Stops reconnecting, frames still queued are discarded and the device is reported as disconnected.
+	 */
+	private void giveUpReconnect(String address) {
+		Reconnect r = mReconnects.remove(address);
+		if (r == null) return;
+
+		if (r.pending != null) mHandler.removeCallbacks(r.pending);
+		r.writer.close();
+		AmarinoChannel.closeAll(address);
+		sendConnectionDisconnected(address);
+	}
+
+	public boolean sendData(final String address, byte[] data) {
+		return sendData(address, data, 0, data.length);
+	}
+
+	/**
+	 * Queues data for the given device, it is written by the connection's own writer thread.
+	 *
+	 * @return false if there is no such connection or the frame was not queued
+	 */
+	public boolean sendData(final String address, byte[] data, int offset, int length) {
+		ConnectionWriter writer = (address != null) ? getWriter(address.toUpperCase()) : null;
+		return writer != null && writer.enqueue(data, offset, length);
+	}
+
+	/**
+	 * Sends the frames queued for the given device without waiting for the coalescing window.
+	 */
+	static boolean flush(String address) {
+		ConnectedThread ct = getConnection(address);
+		if (ct == null) return false;
+
+		ct.mWriter.flush();
+		return true;
+	}
+
+	/**
+	 * @return the number of frames waiting to be written to the given device, -1 if not connected
+	 */
+	static int getOutboundQueueDepth(String address) {
+		ConnectedThread ct = getConnection(address);
+		return (ct != null) ? ct.mWriter.getQueueDepth() : -1;
+	}
+
+	static ConnectionStats getConnectionStats(String address) {
+		ConnectedThread ct = getConnection(address);
+		return (ct != null) ? new ConnectionStats(ct.mAddress, ct.mWriter, ct.mParser, ct.mRing, ct.mConnectMillis) : null;
+	}
+
+	/**
+	 * @return null if the device is not connected or has no heartbeat
+	 */
+	static LatencyStats getLatencyStats(String address) {
+		ConnectedThread ct = getConnection(address);
+		return (ct != null && ct.mHeartbeat != null) ? ct.mHeartbeat.getStats() : null;
+	}
+
+	/**
+	 * @param address upper case
+	 * @return the writer to queue frames for the device, null if it is neither connected nor reconnected
+	 */
+	static ConnectionWriter writerOf(String address) {
+		AmarinoService service = sInstance;
+		return (service != null) ? service.getWriter(address) : null;
+	}
+
+	private static ConnectedThread getConnection(String address) {
+		AmarinoService service = sInstance;
+		if (service == null || address == null) return null;
+		return service.mConnections.get(address.toUpperCase());
 	}
 
 	private void scanForNearbyDevices() {
+		// answered from the last scan while it is fresh
+		NearbyDevices cached = NearbyDevices.getCached();
+		if (cached != null) {
+			Logger.d(TAG, "nearby devices answered from cache");
+			sendNearbyDevices(cached);
+			shutdownServiceIfNecessary();
+			return;
+		}
+		startScan(true, null);
+	}
+
+	/**
+	 * Connects the wanted devices as soon as a scan sees them. The scan is stopped once all of them
+	 * were found, unless someone asked for the nearby devices as well.
+	 */
+	private void scanAndConnect(ScanTarget target) {
+		// devices seen by the last scan are connected right away
+		NearbyDevices cached = NearbyDevices.getCached();
+		if (cached != null) {
+			for (int i = 0; i < cached.mAddresses.length; i++) {
+				String address = cached.mAddresses[i].toUpperCase();
+				if (target.match(cached.mNames[i], address)) connect(address);
+			}
+			if (target.isSatisfied()) {
+				shutdownServiceIfNecessary();
+				return;
+			}
+		}
+		startScan(false, target);
+	}
+
+	/**
+	 * @param report whether ACTION_NEARBY_DEVICES is wanted at the end
+	 * @param target devices to connect when found, may be null
+	 */
+	private void startScan(boolean report, ScanTarget target) {
+		final Scan scan;
+		synchronized (mScanLock) {
+			// the end of a stopped inquiry is still to come and must not complete a new scan, wait for it
+			if (mScan != null && mScan.mStopped) {
+				if (target != null) mQueuedScanTargets.add(target);
+				if (report) mQueuedScanReport = true;
+				return;
+			}
+			if (target != null) mScanTargets.add(target);
+			// a running scan answers everyone who asked, its broadcast is not addressed to a single requester
+			if (mScan != null) {
+				if (report) mScan.mReport = true;
+				return;
+			}
+			scan = new Scan(report);
+			mScan = scan;
+		}
 
 		// We want our service to be busy when scanning, so that it does not shutdown.
 		mServiceState = BUSY;
 
-		final List<String> names = new LinkedList<String>();
-		final List<String> addresses = new LinkedList<String>();
-		final Object lock = new Object();
+		mLocalDevice.acquire(new LocalDeviceSession.Callback() {
+			@Override
+			public void ready(LocalDevice localDevice) {
+				scan.mDevice = localDevice;
+				localDevice.scan(scan);
+			}
+		});
+	}
 
-		mLocalDevice = LocalDevice.getInstance();
-		mLocalDevice.init(this, new ReadyListener() {
+	private class Scan extends ScanListener {
+		// found devices by address, in the order they were found
+		private final Map<String, String> mFound = new LinkedHashMap<String, String>();
+		// whether someone asked for the nearby devices, otherwise the scan may be stopped early
+		volatile boolean mReport;
+		volatile LocalDevice mDevice;
+		// stopped by us, the library still reports the end of the inquiry later
+		volatile boolean mStopped;
+		// guarded by mFound
+		private boolean mDelivered;
+		// guarded by mScanLock
+		private boolean mCompleted;
+
+		// in case the library does not report the end of a stopped inquiry
+		private final Runnable mStopTimeout = new Runnable() {
 			@Override
-			public void ready() {
-				mLocalDevice.scan(new ScanListener() {
-					@Override
-					public void deviceFound(RemoteDevice device) {
-						synchronized (lock) {
-							names.add(device.getFriendlyName());
-							addresses.add(device.getAddress());
-						}
-					}
+			public void run() {
+				Logger.d(TAG, "no end reported for the stopped scan");
+				complete();
+			}
+		};
 
-					@Override
-					public void scanCompleted() {
-						Intent returnIntent = new Intent(AmarinoIntent.ACTION_NEARBY_DEVICES);
+		Scan(boolean report) {
+			mReport = report;
+		}
 
-						String[] namesBis = new String[names.size()];
-						namesBis = names.toArray(namesBis);
-						returnIntent.putExtra(AmarinoIntent.EXTRA_DEVICE_NAMES, namesBis);
+		@Override
+		public void deviceFound(RemoteDevice device) {
+			final String name = device.getFriendlyName();
+			final String address = device.getAddress();
+			synchronized (mFound) {
+				// a device may be reported more than once, or after the scan was stopped
+				if (mDelivered || mFound.containsKey(address)) return;
+				mFound.put(address, name);
+			}
+			sendBroadcast(new Intent(AmarinoIntent.ACTION_DEVICE_FOUND)
+					.putExtra(AmarinoIntent.EXTRA_DEVICE_NAME, name)
+					.putExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESS, address));
+
+			if (mScanTargets.isEmpty()) return;
+			boolean satisfied = true;
+			for (ScanTarget target : mScanTargets) {
+				if (target.match(name, address.toUpperCase())) {
+					Logger.d(TAG, "scan found " + address + ", connecting");
+					connect(address.toUpperCase());
+				}
+				satisfied &= target.isSatisfied();
+			}
 
-						String[] addresesBis = new String[addresses.size()];
-						addresesBis = addresses.toArray(addresesBis);
-						returnIntent.putExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESSES, addresesBis);
+			// the inquiry slows down the connects, nobody needs it anymore
+			if (satisfied && !mReport) stop();
+		}
 
-						sendBroadcast(returnIntent);
+		@Override
+		public void scanCompleted() {
+			mHandler.removeCallbacks(mStopTimeout);
+			complete();
+		}
 
-						shutdownServiceIfNecessary();
+		private void stop() {
+			synchronized (mScanLock) {
+				if (mStopped) return;
+				mStopped = true;
+			}
+			mDevice.stopScan();
+			deliverResult();
+			// this scan stays current until the library reports the end of the inquiry
+			mHandler.postDelayed(mStopTimeout, STOP_TIMEOUT_MILLIS);
+		}
+
+		private void complete() {
+			synchronized (mScanLock) {
+				if (mScan != this || mCompleted) return;
+				mCompleted = true;
+			}
+			deliverResult();
+
+			boolean restart;
+			boolean report;
+			synchronized (mScanLock) {
+				mScan = null;
+				// requests which came in while the stopped inquiry was ending
+				mScanTargets.addAll(mQueuedScanTargets);
+				mQueuedScanTargets.clear();
+				report = mQueuedScanReport;
+				mQueuedScanReport = false;
+				restart = report || !mScanTargets.isEmpty();
+			}
+
+			mLocalDevice.release();
+			if (restart) {
+				startScan(report, null);
+			} else {
+				shutdownServiceIfNecessary();
+			}
+		}
+
+		private void deliverResult() {
+			NearbyDevices devices;
+			synchronized (mFound) {
+				if (mDelivered) return;
+				mDelivered = true;
+				String[] addresses = mFound.keySet().toArray(new String[mFound.size()]);
+				String[] names = mFound.values().toArray(new String[mFound.size()]);
+				devices = new NearbyDevices(names, addresses);
+			}
+			// a stopped scan did not see every device
+			if (!mStopped) NearbyDevices.store(devices);
+			if (mReport) sendNearbyDevices(devices);
+
+			for (ScanTarget target : mScanTargets) {
+				if (mStopped) {
+					// added after the check which stopped the scan, the next inquiry looks for it
+					if (!target.isSatisfied()) {
+						synchronized (mScanLock) {
+							mQueuedScanTargets.add(target);
+						}
 					}
-				});
+					continue;
+				}
+				for (String address : target.getMissing()) {
+					sendConnectionFailed(address);
+				}
 			}
-		});
+			mScanTargets.clear();
+		}
+	}
+
+	private void sendNearbyDevices(NearbyDevices devices) {
+		Intent returnIntent = new Intent(AmarinoIntent.ACTION_NEARBY_DEVICES);
+		returnIntent.putExtra(AmarinoIntent.EXTRA_DEVICE_NAMES, devices.mNames);
+		returnIntent.putExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESSES, devices.mAddresses);
+		sendBroadcast(returnIntent);
+		Streams.publishNearbyDevices(devices.mNames, devices.mAddresses);
 	}
 
 	private void broadcastConnectedDevicesList() {
@@ -267,6 +720,7 @@ public class AmarinoService extends Service {
 
 		sendBroadcast(new Intent(AmarinoIntent.ACTION_DISCONNECTED)
 				.putExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESS, address));
+		Streams.publishConnectionEvent(address, ConnectionEvent.DISCONNECTED);
 
 		broadcastConnectedDevicesList();
 	}
@@ -277,6 +731,7 @@ public class AmarinoService extends Service {
 
 		sendBroadcast(new Intent(AmarinoIntent.ACTION_CONNECTION_FAILED)
 				.putExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESS, address));
+		Streams.publishConnectionEvent(address, ConnectionEvent.CONNECTION_FAILED);
 
 		broadcastConnectedDevicesList();
 	}
@@ -285,16 +740,37 @@ public class AmarinoService extends Service {
 		Logger.d(TAG, getString(R.string.service_pairing_request, address));
 		sendBroadcast(new Intent(AmarinoIntent.ACTION_PAIRING_REQUESTED)
 				.putExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESS, address));
+		Streams.publishConnectionEvent(address, ConnectionEvent.PAIRING_REQUESTED);
 
 		broadcastConnectedDevicesList();
 	}
 
+	private void sendReconnecting(String address, int attempt, long delayMillis) {
+		Logger.d(TAG, "reconnect attempt " + attempt + " to " + address + " in " + delayMillis + " ms");
+
+		sendBroadcast(new Intent(AmarinoIntent.ACTION_RECONNECTING)
+				.putExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESS, address)
+				.putExtra(AmarinoIntent.EXTRA_ATTEMPT, attempt)
+				.putExtra(AmarinoIntent.EXTRA_DELAY_MILLIS, delayMillis));
+		Streams.publishConnectionEvent(address, ConnectionEvent.RECONNECTING);
+	}
+
+	private void sendConnectAllFinished(String[] connected, long elapsedMillis) {
+		Logger.d(TAG, connected.length + " devices connected after " + elapsedMillis + " ms");
+
+		sendBroadcast(new Intent(AmarinoIntent.ACTION_CONNECT_ALL_FINISHED)
+				.putExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESSES, connected)
+				.putExtra(AmarinoIntent.EXTRA_ELAPSED_MILLIS, elapsedMillis));
+		shutdownServiceIfNecessary();
+	}
+
 	private void sendConnectionEstablished(String address) {
 		String info = getString(R.string.service_connected_to, address);
 		Logger.d(TAG, info);
 
 		sendBroadcast(new Intent(AmarinoIntent.ACTION_CONNECTED)
 				.putExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESS, address));
+		Streams.publishConnectionEvent(address, ConnectionEvent.CONNECTED);
 
 		broadcastConnectedDevicesList();
 	}
@@ -306,31 +782,189 @@ public class AmarinoService extends Service {
 		return mBinder;
 	}
 
+	/**
+	 * Sends data to Arduino with a direct call instead of an ACTION_SEND broadcast, which saves the
+	 * broadcast, the service start and the hop to the main thread per message. Get it by binding the
+	 * service from the same process, see {@link AmarinoHelper#bindService(Context, ServiceConnection)}.
+	 *
+	 * <p>Methods may be called from any thread. They return false if the device is neither connected
+	 * nor being reconnected, or the frame was dropped by the overflow policy. The Intent API keeps
+	 * working alongside.</p>
+	 */
 	public class AmarinoServiceBinder extends Binder {
 		AmarinoService getService() {
 			return AmarinoService.this;
 		}
+
+		/**
+		 * @return true if the device has a live connection. A device being reconnected has none,
+		 * but the send methods still accept frames for it, they wait for the reconnect
+		 */
+		public boolean isConnected(String address) {
+			return address != null && mConnections.containsKey(address.toUpperCase());
+		}
+
+		public boolean send(String address, char flag, boolean value) {
+			final ConnectionWriter writer = writerFor(address);
+			if (writer == null) return false;
+
+			final FrameEncoder e = mBinderEncoders.get();
+			if (isBinary(address)) e.encodeBinary(flag, value); else e.encode(flag, value);
+			return writer.enqueue(e.getBuffer(), 0, e.getLength(), flag);
+		}
+
+		public boolean send(String address, char flag, int value) {
+			final ConnectionWriter writer = writerFor(address);
+			if (writer == null) return false;
+
+			final FrameEncoder e = mBinderEncoders.get();
+			if (isBinary(address)) e.encodeBinary(flag, value); else e.encode(flag, (long) value);
+			return writer.enqueue(e.getBuffer(), 0, e.getLength(), flag);
+		}
+
+		public boolean send(String address, char flag, long value) {
+			final ConnectionWriter writer = writerFor(address);
+			if (writer == null) return false;
+
+			final FrameEncoder e = mBinderEncoders.get();
+			e.encode(flag, value);
+			return writer.enqueue(e.getBuffer(), 0, e.getLength(), flag);
+		}
+
+		public boolean send(String address, char flag, float value) {
+			final ConnectionWriter writer = writerFor(address);
+			if (writer == null) return false;
+
+			final FrameEncoder e = mBinderEncoders.get();
+			if (isBinary(address)) e.encodeBinary(flag, value); else e.encode(flag, value);
+			return writer.enqueue(e.getBuffer(), 0, e.getLength(), flag);
+		}
+
+		public boolean send(String address, char flag, double value) {
+			final ConnectionWriter writer = writerFor(address);
+			if (writer == null) return false;
+
+			final FrameEncoder e = mBinderEncoders.get();
+			// Arduino doubles are 4-byte floats
+			if (isBinary(address)) e.encodeBinary(flag, (float) value); else e.encode(flag, value);
+			return writer.enqueue(e.getBuffer(), 0, e.getLength(), flag);
+		}
+
+		public boolean send(String address, char flag, String value) {
+			final ConnectionWriter writer = writerFor(address);
+			if (writer == null) return false;
+
+			final FrameEncoder e = mBinderEncoders.get();
+			e.encode(flag, value);
+			return writer.enqueue(e.getBuffer(), 0, e.getLength(), flag);
+		}
+
+		public boolean send(String address, char flag, int[] values) {
+			final ConnectionWriter writer = writerFor(address);
+			if (writer == null) return false;
+
+			final FrameEncoder e = mBinderEncoders.get();
+			if (!(isBinary(address) && e.encodeBinary(flag, values)) && !e.encode(flag, values)) return false;
+			return writer.enqueue(e.getBuffer(), 0, e.getLength(), flag);
+		}
+
+		public boolean send(String address, char flag, float[] values) {
+			final ConnectionWriter writer = writerFor(address);
+			if (writer == null) return false;
+
+			final FrameEncoder e = mBinderEncoders.get();
+			if (!(isBinary(address) && e.encodeBinary(flag, values)) && !e.encode(flag, values)) return false;
+			return writer.enqueue(e.getBuffer(), 0, e.getLength(), flag);
+		}
+
+		public boolean send(String address, char flag, byte[] values) {
+			final ConnectionWriter writer = writerFor(address);
+			if (writer == null) return false;
+
+			final FrameEncoder e = mBinderEncoders.get();
+			if (!(isBinary(address) && e.encodeBinary(flag, values)) && !e.encode(flag, values)) return false;
+			return writer.enqueue(e.getBuffer(), 0, e.getLength(), flag);
+		}
+
+		/**
+		 * Sends one value per flag, e.g. the positions of several servos of one control step.
+		 *
+		 * @return how many of the values were queued
+		 */
+		public int sendBatch(String address, char[] flags, int[] values) {
+			if (flags.length != values.length) throw new IllegalArgumentException("one value per flag expected");
+			final ConnectionWriter writer = writerFor(address);
+			if (writer == null) return 0;
+
+			final FrameEncoder e = mBinderEncoders.get();
+			final boolean binary = isBinary(address);
+			int queued = 0;
+			for (int i = 0; i < flags.length; i++) {
+				if (binary) e.encodeBinary(flags[i], values[i]); else e.encode(flags[i], (long) values[i]);
+				if (writer.enqueue(e.getBuffer(), 0, e.getLength(), flags[i])) queued++;
+			}
+			return queued;
+		}
+
+		/**
+		 * @see #sendBatch(String, char[], int[])
+		 */
+		public int sendBatch(String address, char[] flags, float[] values) {
+			if (flags.length != values.length) throw new IllegalArgumentException("one value per flag expected");
+			final ConnectionWriter writer = writerFor(address);
+			if (writer == null) return 0;
+
+			final FrameEncoder e = mBinderEncoders.get();
+			final boolean binary = isBinary(address);
+			int queued = 0;
+			for (int i = 0; i < flags.length; i++) {
+				if (binary) e.encodeBinary(flags[i], values[i]); else e.encode(flags[i], values[i]);
+				if (writer.enqueue(e.getBuffer(), 0, e.getLength(), flags[i])) queued++;
+			}
+			return queued;
+		}
+
+		/**
+		 * Sends frames encoded by the caller, e.g. with a {@link FrameEncoder}.
+		 */
+		public boolean sendFrame(String address, byte[] frame, int offset, int length) {
+			return sendData(address, frame, offset, length);
+		}
+
+		private ConnectionWriter writerFor(String address) {
+			return (address != null) ? getWriter(address.toUpperCase()) : null;
+		}
+
+		private boolean isBinary(String address) {
+			return ConnectionSettings.peek(address).getFrameFormat() == ConnectionSettings.FRAME_FORMAT_BINARY;
+		}
 	}
 
 	/* ---------- Connection Threads ---------- */
 
 	/**
-	 * ConnectThread tries to establish a connection and starts the communication thread
+	 * ConnectTask tries to establish a connection and starts the communication thread,
+	 * it runs on the pool of the ConnectionManager
 	 */
-	private class ConnectThread extends Thread {
+	private class ConnectTask implements Runnable {
 
-		//private static final String TAG = "ConnectThread";
+		//private static final String TAG = "ConnectTask";
 		private final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 
 		private final RemoteDevice mDevice;
+		// the key of the connection table, upper case
+		private final String mAddress;
 		private BtSocket mSocket;
 
-		public ConnectThread(RemoteDevice device) {
+		public ConnectTask(RemoteDevice device, String address) {
 			mDevice = device;
+			mAddress = address;
 		}
 
 		public void run() {
 			try {
+				if (mConnectionManager.isCancelled(mAddress)) throw new CancellationException("connect cancelled");
+
 				String info = getString(R.string.service_connecting_to, mDevice.getAddress());
 				Logger.d(TAG, info);
 
@@ -344,6 +978,8 @@ public class AmarinoService extends Service {
 
 				if (!isPaired) {
 					Log.d(TAG, "not paired!");
+					mConnectionManager.finish(mAddress, false);
+					giveUpReconnect(mAddress);
 					sendPairingRequested(mDevice.getAddress());
 					shutdownServiceIfNecessary();
 				} else {
@@ -351,19 +987,16 @@ public class AmarinoService extends Service {
 					// Let main thread do some stuff to render UI immediately
 					Thread.yield();
 					// Get a BluetoothSocket to connect with the given BluetoothDevice
-					try {
-						mSocket = mDevice.openSocket(SPP_UUID);
-					} catch (Exception e) {
-						Logger.d(TAG, "Connection via SDP unsuccessful, try to connect via port directly");
-						// 1.x Android devices only work this way since SDP was not part of their firmware then
-						mSocket = mDevice.openSocket(1);
-					}
+					mSocket = openSocket();
+					if (mConnectionManager.isCancelled(mAddress)) throw new CancellationException("connect cancelled");
 
 					// Do work to manage the connection (in a separate thread)
 					manageConnectedSocket(mSocket);
 				}
 			} catch (Exception e) {
-				sendConnectionFailed(mDevice.getAddress());
+				if (e instanceof TimeoutException) ConnectionManager.recordTimeout();
+				mConnectionManager.finish(mAddress, false);
+				if (!retryReconnect(mAddress)) sendConnectionFailed(mDevice.getAddress());
 				e.printStackTrace();
 				if (mSocket != null)
 					try {
@@ -374,6 +1007,43 @@ public class AmarinoService extends Service {
 			}
 		}
 
+		private BtSocket openSocket() throws Exception {
+			final long timeout = ConnectionSettings.get(mAddress).getConnectTimeoutMillis();
+			final long deadline = SystemClock.uptimeMillis() + timeout;
+			long left = timeout;
+
+			// a device which answered on a channel before is tried there first, SDP may take seconds.
+			// The channel only gets part of the deadline, a channel which hangs must not keep the
+			// device from being found via SDP again
+			final int known = mChannels.get(mAddress);
+			if (known > 0) {
+				SocketRace first = new SocketRace(mDevice, null, known);
+				mConnectionManager.attach(mAddress, first);
+				try {
+					return first.open((timeout > 0) ? Math.max(1, timeout / 2) : KNOWN_CHANNEL_TIMEOUT_MILLIS);
+				} catch (CancellationException e) {
+					throw e;
+				} catch (Exception e) {
+					Logger.d(TAG, "Connection via known channel " + known + " unsuccessful, try SDP");
+					mChannels.remove(mAddress);
+				}
+
+				if (timeout > 0) {
+					left = deadline - SystemClock.uptimeMillis();
+					if (left <= 0) throw new TimeoutException("no socket within " + timeout + " ms");
+				}
+			}
+
+			// SDP may hang, the usual channel is tried at the same time.
+			// 1.x Android devices only work on a channel since SDP was not part of their firmware then
+			SocketRace race = new SocketRace(mDevice, SPP_UUID, 1);
+			mConnectionManager.attach(mAddress, race);
+
+			BtSocket socket = race.open(left);
+			mChannels.put(mAddress, race.getChannel());
+			return socket;
+		}
+
 		/**
 		 * Will cancel an in-progress connection, and close the socket
 		 */
@@ -390,30 +1060,68 @@ public class AmarinoService extends Service {
 		private void manageConnectedSocket(BtSocket socket) {
 			Logger.d(TAG, "connection established.");
 			// pass the socket to a worker thread
-			String address = mDevice.getAddress();
-			ConnectedThread t = new ConnectedThread(socket, address);
-			mConnections.put(address, t);
+			// a reconnected device gets the frames queued while it was away
+			Reconnect r = mReconnects.remove(mAddress);
+			if (r != null) {
+				mHandler.removeCallbacks(r.pending);
+				// the old writer puts back the batch it did not write before the new one starts,
+				// if it hangs in a write the new writer claims the queue anyway
+				if (!r.writer.awaitStopped(WRITER_JOIN_MILLIS))
+					Logger.d(TAG, "writer of the lost connection to " + mAddress + " still running");
+			}
+			ConnectedThread t = new ConnectedThread(socket, mAddress, (r != null) ? r.writer.getQueue() : null);
+			mConnections.put(mAddress, t);
+			mServiceState = ACTIVE_CONNECTIONS;
+			t.mConnectMillis = mConnectionManager.finish(mAddress, true);
 			t.start();
 
-			mServiceState = ACTIVE_CONNECTIONS;
 			// now it is time to enable the plug-ins so that they can use our socket
 			//informPlugins(address, true);
 		}
 	}
 
+	/**
+	 * A dropped connection waiting for its next reconnect attempt
+	 */
+	private static class Reconnect {
+		// stopped, but still accepts frames for the next connection
+		final ConnectionWriter writer;
+		int attempt;
+		Runnable pending;
+
+		Reconnect(ConnectionWriter writer) {
+			this.writer = writer;
+		}
+	}
+
 	/**
 	 * ConnectedThread is holding the socket for communication with a Bluetooth device
 	 */
-	private class ConnectedThread extends Thread {
+	private class ConnectedThread extends Thread
+			implements FrameParser.FrameHandler, AggregationStage.Output, Heartbeat.Listener {
 		private final BtSocket mSocket;
 		private final InputStream mInStream;
-		private final OutputStream mOutStream;
 		private final String mAddress;
-		private StringBuffer forwardBuffer = new StringBuffer();
+		private final ConnectionSettings mSettings;
+		private final ConnectionWriter mWriter;
+		private final FrameParser mParser;
+		private final InboundRing mRing;
+		// how long the connect took
+		private volatile long mConnectMillis;
+		// null unless a heartbeat is configured
+		private final Heartbeat mHeartbeat;
+		// set while the reading thread waits for a stream subscriber
+		private volatile boolean mReadStalled;
+		// aggregations of this connection by flag, only used by the reading thread
+		private final HashMap<Character, AggregationStage> mStages = new HashMap<Character, AggregationStage>();
 
-		public ConnectedThread(BtSocket socket, String address) {
+		/**
+		 * @param queue the frames queued for the device while it was reconnected, or null
+		 */
+		public ConnectedThread(BtSocket socket, String address, OutboundQueue queue) {
 			mSocket = socket;
 			this.mAddress = address;
+			mSettings = ConnectionSettings.get(address);
 			InputStream tmpIn = null;
 			OutputStream tmpOut = null;
 
@@ -426,7 +1134,12 @@ public class AmarinoService extends Service {
 			}
 
 			mInStream = tmpIn;
-			mOutStream = tmpOut;
+			mWriter = (queue != null) ? new ConnectionWriter(tmpOut, address, mSettings, queue)
+					: new ConnectionWriter(tmpOut, address, mSettings);
+			mParser = new FrameParser(mSettings, this);
+			mRing = (mSettings.getInboundRingCapacity() > 0) ? InboundRing.get(address) : null;
+			mHeartbeat = (mSettings.getHeartbeatIntervalMillis() > 0)
+					? new Heartbeat(mWriter, address, mSettings.getHeartbeatTimeoutMillis(), this) : null;
 		}
 
 		@Override
@@ -434,8 +1147,9 @@ public class AmarinoService extends Service {
 
 			byte[] buffer = new byte[1024];  // buffer store for the stream
 			int bytes = 0; // bytes returned from read()
-			String msg;
 
+			mWriter.start();
+			if (mHeartbeat != null) mHeartbeat.start(mSettings.getHeartbeatIntervalMillis());
 			sendConnectionEstablished(mAddress);
 
 			// Keep listening to the InputStream until an exception occurs
@@ -445,66 +1159,151 @@ public class AmarinoService extends Service {
 					bytes = mInStream.read(buffer);
 
 					// Send the obtained bytes to the UI Activity
-					msg = new String(buffer, 0, (bytes != -1) ? bytes : 0);
-					//Log.d(TAG, msg); // raw data with control flags
-
-					forwardData(msg);
+					if (bytes > 0) mParser.parse(buffer, 0, bytes);
 
 				} catch (IOException e) {
-					disconnect(mAddress);
+					if (mHeartbeat != null) mHeartbeat.stop();
+					connectionLost(this);
 					Logger.d(TAG, "communication to " + mAddress + " halted");
 					break;
+				} catch (RuntimeException e) {
+					// a failing callback must not leave a connection behind which no longer reads
+					Log.e(TAG, "reading from " + mAddress + " failed: " + e);
+					if (mHeartbeat != null) mHeartbeat.stop();
+					connectionLost(this);
+					break;
 				}
 			}
 		}
 
-		private void forwardData(String data){
-			char c;
-			for (int i=0;i<data.length();i++){
-				c = data.charAt(i);
-				if (c == MessageBuilder.ARDUINO_MSG_FLAG){
-					// TODO this could be used to determine the data type
-					// if (i+1<data.length()){
-					//	int dataType = data.charAt(i+1);
-					//	i++;
-					// depending on the dataType we could convert the following data appropriately
-					//	}
-					// else {
-					// wait for the next char to be sent
-					// }
-				}
-				else if (c == MessageBuilder.ACK_FLAG){
-					// message complete send the data
-					forwardDataToOtherApps(forwardBuffer.toString());
-					forwardBuffer = new StringBuffer();
-				}
-				else {
-					forwardBuffer.append(c);
-				}
+		@Override
+		public void onFrame(byte[] frame, int length, int dataType, AmarinoData data) {
+			if (mHeartbeat != null && Heartbeat.isEcho(frame, length, dataType)) {
+				mHeartbeat.onEcho(frame, length);
+				return;
+			}
+
+			if (mRing != null) mRing.offer(frame, length, dataType, System.nanoTime());
+
+			if (dataType == 0 && length > 0) {
+				AggregationStage stage = getAggregationStage((char) (frame[0] & 0xFF));
+				if (stage != null && !stage.add(frame, length, SystemClock.elapsedRealtime(), this)) return;
+			}
+
+			// subscriptions are matched once here, against the raw bytes
+			AmarinoListener[] subscribers = Subscriptions.match(mAddress, frame, length);
+			if (subscribers == null && !AmarinoHelper.hasUnfilteredListeners()
+					&& !Streams.hasDataSubscribers() && !mSettings.isBroadcastingReceivedData()) {
+				// nobody wants the message, skip building Strings for it
+				return;
 			}
+
+			// message complete send the data, decoded as a whole so multi-byte chars survive split reads
+			String msg = new String(frame, 0, length);
+
+			// typed messages were decoded once by the parser, instead of by every receiver
+			forwardDataToOtherApps(msg, data, subscribers);
+		}
+
+		@Override
+		public void onAggregate(String message, AmarinoData data) {
+			AmarinoListener[] subscribers = Subscriptions.match(mAddress, message);
+			if (subscribers == null && !AmarinoHelper.hasUnfilteredListeners()
+					&& !Streams.hasDataSubscribers() && !mSettings.isBroadcastingReceivedData()) return;
+
+			forwardDataToOtherApps(message, data, subscribers);
+		}
+
+		private AggregationStage getAggregationStage(char flag) {
+			Aggregation aggregation = mSettings.getAggregation(flag);
+			if (aggregation == null) {
+				if (!mStages.isEmpty()) mStages.remove(flag);
+				return null;
+			}
+
+			AggregationStage stage = mStages.get(flag);
+			if (stage == null || stage.mAggregation != aggregation) {
+				stage = new AggregationStage(flag, aggregation);
+				mStages.put(flag, stage);
+			}
+			return stage;
 		}
 
-		private void forwardDataToOtherApps(String msg) {
+		private void forwardDataToOtherApps(String msg, AmarinoData data, AmarinoListener[] subscribers) {
 			Logger.d(TAG, "Arduino says: " + msg);
+
+			// waits while a stream subscriber is behind, which throttles reading from the device
+			mReadStalled = true;
+			try {
+				Streams.publishReceived(mAddress, msg, data);
+			} finally {
+				mReadStalled = false;
+			}
+
+			if (ReceiveBatcher.isEnabled()) {
+				mBatcher.add(mAddress, msg, data, mSettings.isBroadcastingReceivedData());
+				return;
+			}
+
+			// listeners of our own process do not need to go through the broadcast
+			boolean dispatched = ReceiveDispatcher.dispatch(mAddress, msg, data, subscribers);
+			if (!mSettings.isBroadcastingReceivedData()) return;
+
 			Intent intent = new Intent(AmarinoIntent.ACTION_RECEIVED);
 			intent.putExtra(AmarinoIntent.EXTRA_DATA, msg);
 			intent.putExtra(AmarinoIntent.EXTRA_DATA_TYPE, AmarinoIntent.STRING_EXTRA);
 			intent.putExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESS, mAddress);
+			if (data != null) data.putInto(intent);
+			if (dispatched) intent.putExtra(AmarinoIntent.EXTRA_DISPATCHED_PID, Process.myPid());
 			sendBroadcast(intent);
 		}
 
-		/* Call this from the main Activity to send data to the remote device */
-		public void write(byte[] bytes) {
+		/* Call this from the main Activity to send data to the remote device, it never blocks
+		 * unless the write queue policy is OverflowPolicy.BLOCK */
+		public boolean write(byte[] bytes, int offset, int length) {
+			return mWriter.enqueue(bytes, offset, length);
+		}
+
+		public boolean write(byte[] bytes, int offset, int length, char flag) {
+			return mWriter.enqueue(bytes, offset, length, flag);
+		}
+
+		@Override
+		public void onLinkDead() {
+			// the blocking read fails and the connection is lost as usual
+			try {
+				if (mSocket != null) mSocket.close();
+			} catch (IOException e) {
+				Log.e(TAG, "cannot close socket to " + mAddress);
+			}
+			// stop waiting for a stream subscriber, so the read notices
+			interrupt();
+		}
+
+		@Override
+		public boolean isReadStalled() {
+			return mReadStalled;
+		}
+
+		/* Closes the broken socket but keeps the queue of the writer, for a reconnect.
+		 */
+		public void detach() {
+			mWriter.detach();
 			try {
-				mOutStream.write(bytes);
-				Logger.d(TAG, "send to Arduino: " + new String(bytes));
+				if(mSocket != null) mSocket.close();
 			} catch (IOException e) {
+				Log.e(TAG, "cannot close socket to " + mAddress);
 			}
 		}
 
 		/* Call this from the main Activity to shutdown the connection.
 		 */
 		public void cancel() {
+			if (mHeartbeat != null) mHeartbeat.stop();
+			mWriter.close();
+			AmarinoChannel.closeAll(mAddress);
+			// releases the reading thread if it waits for a stream subscriber
+			interrupt();
 			try {
 				if(mSocket != null) mSocket.close();
 				sendConnectionDisconnected(mAddress);
@@ -0,0 +1,50 @@
+package at.abraxas.amarino;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers per device how the last connect succeeded, kept across service restarts.
+ *
+ * <p>A device which answered on a channel is tried there first next time, without waiting for SDP.
+ * The Bluetooth library does not tell which RFCOMM channel an SDP query resolved to, so a device
+ * reached via SDP is queried again.</p>
+ */
+class ChannelCache {
+
+	/** nothing is known about the device */
+	static final int UNKNOWN = -1;
+	/** the device was reached via an SDP lookup of the serial port service */
+	static final int SDP = 0;
+
+	private static final String PREFS_NAME = "at.abraxas.amarino.channels";
+
+	private final SharedPreferences mPrefs;
+
+	ChannelCache(Context context) {
+		mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * @param address upper case
+	 * @return {@link #UNKNOWN}, {@link #SDP} or an RFCOMM channel
+	 */
+	int get(String address) {
+		return mPrefs.getInt(address, UNKNOWN);
+	}
+
+	/**
+	 * @param channel {@link #SDP} or an RFCOMM channel
+	 */
+	void put(String address, int channel) {
+		if (get(address) == channel) return;
+		mPrefs.edit().putInt(address, channel).commit();
+	}
+
+	/**
+	 * Forgets the device, e.g. after it no longer answered on its known channel.
+	 */
+	void remove(String address) {
+		mPrefs.edit().remove(address).commit();
+	}
+}
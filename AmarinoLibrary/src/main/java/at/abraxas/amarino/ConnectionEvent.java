@@ -0,0 +1,37 @@
+package at.abraxas.amarino;
+
+/**
+ * A change of a connection, emitted by {@link AmarinoHelper#connectionEvents()}.
+ */
+public class ConnectionEvent {
+
+	public static final int CONNECTED = 1;
+	public static final int DISCONNECTED = 2;
+	public static final int CONNECTION_FAILED = 3;
+	public static final int PAIRING_REQUESTED = 4;
+	public static final int RECONNECTING = 5;
+
+	private final String mAddress;
+	private final int mState;
+
+	ConnectionEvent(String address, int state) {
+		mAddress = address;
+		mState = state;
+	}
+
+	public String getAddress() {
+		return mAddress;
+	}
+
+	/**
+	 * @return one of the constants of this class
+	 */
+	public int getState() {
+		return mState;
+	}
+
+	@Override
+	public String toString() {
+		return mAddress + ": " + mState;
+	}
+}
@@ -0,0 +1,224 @@
+package at.abraxas.amarino;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the connects of the service on a bounded pool, at most one at a time per address,
+ * and measures how long a group of devices connected together takes until all are done.
+ * A connect in progress can be cancelled, the times of successful connects are kept for
+ * {@link AmarinoHelper#getConnectLatencyStats()}.
+ */
+class ConnectionManager {
+
+	interface Callback {
+		/**
+		 * @param connected the addresses of the group which are connected now
+		 * @param elapsedMillis from the request until the last device was connected or failed
+		 */
+		void onGroupFinished(String[] connected, long elapsedMillis);
+	}
+
+	private static volatile int sMaxParallelConnects = 4;
+
+	// survives restarts of the service
+	private static final LatencyRecorder sConnectLatencies = new LatencyRecorder(256);
+
+	private final ThreadPoolExecutor mExecutor;
+	private final Callback mCallback;
+	// addresses being connected
+	private final ConcurrentHashMap<String, Attempt> mInFlight = new ConcurrentHashMap<String, Attempt>();
+	private final CopyOnWriteArrayList<Group> mGroups = new CopyOnWriteArrayList<Group>();
+
+	ConnectionManager(Callback callback) {
+		mCallback = callback;
+		mExecutor = new ThreadPoolExecutor(sMaxParallelConnects, sMaxParallelConnects,
+				0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private int mCount;
+
+					@Override
+					public synchronized Thread newThread(Runnable r) {
+						return new Thread(r, "AmarinoConnect-" + (++mCount));
+					}
+				});
+	}
+
+	/**
+	 * @param max how many devices are connected at the same time, further connects wait
+	 */
+	static void setDefaultMaxParallelConnects(int max) {
+		if (max < 1) throw new IllegalArgumentException("at least one connect must be allowed");
+		sMaxParallelConnects = max;
+	}
+
+	/**
+	 * Applies a new limit to this running manager, see {@link #setDefaultMaxParallelConnects(int)}.
+	 */
+	void setMaxParallelConnects(int max) {
+		if (max > mExecutor.getMaximumPoolSize()) {
+			mExecutor.setMaximumPoolSize(max);
+			mExecutor.setCorePoolSize(max);
+		} else {
+			mExecutor.setCorePoolSize(max);
+			mExecutor.setMaximumPoolSize(max);
+		}
+	}
+
+	/**
+	 * @return false if the address is already being connected, the caller must not connect it again
+	 */
+	boolean begin(String address) {
+		return mInFlight.putIfAbsent(address, new Attempt()) == null;
+	}
+
+	/**
+	 * Makes the running connect of the address give up, or the queued one not start.
+	 *
+	 * @return false if the address is not being connected
+	 */
+	boolean cancel(String address) {
+		Attempt attempt = mInFlight.get(address);
+		if (attempt == null) return false;
+
+		attempt.cancel();
+		return true;
+	}
+
+	boolean isCancelled(String address) {
+		Attempt attempt = mInFlight.get(address);
+		return attempt != null && attempt.isCancelled();
+	}
+
+	/**
+	 * Lets {@link #cancel(String)} stop the socket race of the connect.
+	 */
+	void attach(String address, SocketRace race) {
+		Attempt attempt = mInFlight.get(address);
+		if (attempt != null) attempt.attach(race);
+	}
+
+	boolean isConnecting(String address) {
+		return mInFlight.containsKey(address);
+	}
+
+	/**
+	 * @return whether any connect is running
+	 */
+	boolean isConnecting() {
+		return !mInFlight.isEmpty();
+	}
+
+	void execute(Runnable connect) {
+		mExecutor.execute(connect);
+	}
+
+	/**
+	 * Ends the connect of an address started with {@link #begin(String)}.
+	 *
+	 * @return how long the connect took in milliseconds
+	 */
+	long finish(String address, boolean connected) {
+		Attempt attempt = mInFlight.remove(address);
+		long elapsed = (attempt != null) ? SystemClock.uptimeMillis() - attempt.mStart : 0;
+		if (attempt != null && connected) sConnectLatencies.record(elapsed * 1000);
+
+		settle(address, connected);
+		return elapsed;
+	}
+
+	/**
+	 * Tells the groups waiting for the address that it is done.
+	 */
+	void settle(String address, boolean connected) {
+		for (Group group : mGroups) {
+			if (group.finish(address, connected)) {
+				mGroups.remove(group);
+				mCallback.onGroupFinished(group.getConnected(), SystemClock.uptimeMillis() - group.mStart);
+			}
+		}
+	}
+
+	/**
+	 * Tracks the given addresses until each of them was connected or failed.
+	 *
+	 * @param pending the addresses which are still to be connected
+	 * @param connected the addresses of the group which already are
+	 */
+	void addGroup(Set<String> pending, List<String> connected) {
+		Group group = new Group(pending, connected);
+		if (pending.isEmpty()) {
+			mCallback.onGroupFinished(group.getConnected(), 0);
+		} else {
+			mGroups.add(group);
+		}
+	}
+
+	/**
+	 * Counts a connect which ran into its deadline.
+	 */
+	static void recordTimeout() {
+		sConnectLatencies.recordTimeout();
+	}
+
+	static LatencyStats getConnectLatencyStats() {
+		return sConnectLatencies.snapshot();
+	}
+
+	void shutdown() {
+		mExecutor.shutdownNow();
+	}
+
+	private static class Attempt {
+		final long mStart = SystemClock.uptimeMillis();
+		private boolean mCancelled;
+		private SocketRace mRace;
+
+		synchronized void cancel() {
+			mCancelled = true;
+			if (mRace != null) mRace.cancel();
+		}
+
+		synchronized boolean isCancelled() {
+			return mCancelled;
+		}
+
+		synchronized void attach(SocketRace race) {
+			mRace = race;
+			if (mCancelled) race.cancel();
+		}
+	}
+
+	private static class Group {
+		final long mStart = SystemClock.uptimeMillis();
+		private final Set<String> mPending;
+		private final List<String> mConnected;
+
+		Group(Set<String> pending, List<String> connected) {
+			mPending = new HashSet<String>(pending);
+			mConnected = new ArrayList<String>(connected);
+		}
+
+		/**
+		 * @return true if this was the last address the group waited for
+		 */
+		synchronized boolean finish(String address, boolean connected) {
+			if (!mPending.remove(address)) return false;
+			if (connected) mConnected.add(address);
+			return mPending.isEmpty();
+		}
+
+		synchronized String[] getConnected() {
+			return mConnected.toArray(new String[mConnected.size()]);
+		}
+	}
+}
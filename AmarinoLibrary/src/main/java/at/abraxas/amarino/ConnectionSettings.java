@@ -0,0 +1,363 @@
+package at.abraxas.amarino;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tuning knobs of a connection to a Bluetooth device.
+ *
+ * <p>Settings of an address start as a copy of the defaults the first time they are requested,
+ * later changes of the defaults only apply to addresses which have not been configured yet.
+ * The service reads them while the connection is running, so changes apply immediately.</p>
+ *
+ * <p>Get instances through {@link AmarinoHelper#getDefaultConnectionSettings()} and
+ * {@link AmarinoHelper#getConnectionSettings(String)}.</p>
+ */
+public class ConnectionSettings {
+
+	/**
+	 * Values are sent as text, see {@link MessageBuilder}. This is the default.
+	 */
+	public static final int FRAME_FORMAT_ASCII = 0;
+	/**
+	 * Numeric values are sent as fixed-width binary frames, see {@link MessageBuilder#BINARY_FLAG}.
+	 * Strings and longs are still sent as text.
+	 */
+	public static final int FRAME_FORMAT_BINARY = 1;
+
+	private static final ConnectionSettings sDefaults = new ConnectionSettings();
+	private static final ConcurrentHashMap<String, ConnectionSettings> sSettings =
+			new ConcurrentHashMap<String, ConnectionSettings>();
+
+	private volatile int mFrameFormat = FRAME_FORMAT_ASCII;
+	private volatile int mWriteQueueCapacity = 64;
+	private volatile int mWriteQueuePolicy = OverflowPolicy.FAIL;
+	private volatile long mCoalesceWindowMillis = 0;
+	private volatile int mCoalesceMaxBytes = 512;
+	private volatile int mMaxInboundFrameLength = 4096;
+	private volatile boolean mBroadcastReceivedData = true;
+	private volatile boolean mTypedInbound = false;
+	private volatile int mInboundRingCapacity = 0;
+	private volatile int mReconnectMaxAttempts = 0;
+	private volatile long mReconnectInitialDelayMillis = 250;
+	private volatile long mReconnectMaxDelayMillis = 30000;
+	private volatile float mReconnectJitter = 0.2f;
+	private volatile long mHeartbeatIntervalMillis = 0;
+	private volatile long mHeartbeatTimeoutMillis = 0;
+	private volatile long mConnectTimeoutMillis = 0;
+	private final ConcurrentHashMap<Character, Boolean> mConflatingFlags =
+			new ConcurrentHashMap<Character, Boolean>();
+	private final ConcurrentHashMap<Character, Aggregation> mAggregations =
+			new ConcurrentHashMap<Character, Aggregation>();
+
+	private ConnectionSettings() {
+	}
+
+	private ConnectionSettings(ConnectionSettings other) {
+		mFrameFormat = other.mFrameFormat;
+		mWriteQueueCapacity = other.mWriteQueueCapacity;
+		mWriteQueuePolicy = other.mWriteQueuePolicy;
+		mCoalesceWindowMillis = other.mCoalesceWindowMillis;
+		mCoalesceMaxBytes = other.mCoalesceMaxBytes;
+		mMaxInboundFrameLength = other.mMaxInboundFrameLength;
+		mBroadcastReceivedData = other.mBroadcastReceivedData;
+		mTypedInbound = other.mTypedInbound;
+		mInboundRingCapacity = other.mInboundRingCapacity;
+		mReconnectMaxAttempts = other.mReconnectMaxAttempts;
+		mReconnectInitialDelayMillis = other.mReconnectInitialDelayMillis;
+		mReconnectMaxDelayMillis = other.mReconnectMaxDelayMillis;
+		mReconnectJitter = other.mReconnectJitter;
+		mHeartbeatIntervalMillis = other.mHeartbeatIntervalMillis;
+		mHeartbeatTimeoutMillis = other.mHeartbeatTimeoutMillis;
+		mConnectTimeoutMillis = other.mConnectTimeoutMillis;
+		mConflatingFlags.putAll(other.mConflatingFlags);
+		mAggregations.putAll(other.mAggregations);
+	}
+
+	static ConnectionSettings getDefaults() {
+		return sDefaults;
+	}
+
+	/**
+	 * @return the settings of the given address, created from the defaults if needed
+	 */
+	static ConnectionSettings get(String address) {
+		address = address.toUpperCase();
+		ConnectionSettings settings = sSettings.get(address);
+		if (settings == null) {
+			settings = new ConnectionSettings(sDefaults);
+			ConnectionSettings existing = sSettings.putIfAbsent(address, settings);
+			if (existing != null) settings = existing;
+		}
+		return settings;
+	}
+
+	/**
+	 * @return the settings of the given address, or the defaults if it was never configured
+	 */
+	static ConnectionSettings peek(String address) {
+		ConnectionSettings settings = (address != null) ? sSettings.get(address.toUpperCase()) : null;
+		return (settings != null) ? settings : sDefaults;
+	}
+
+	public int getFrameFormat() {
+		return mFrameFormat;
+	}
+
+	/**
+	 * @param frameFormat {@link #FRAME_FORMAT_ASCII} or {@link #FRAME_FORMAT_BINARY}
+	 */
+	public ConnectionSettings setFrameFormat(int frameFormat) {
+		if (frameFormat != FRAME_FORMAT_ASCII && frameFormat != FRAME_FORMAT_BINARY)
+			throw new IllegalArgumentException("unknown frame format " + frameFormat);
+		mFrameFormat = frameFormat;
+		return this;
+	}
+
+	public int getWriteQueueCapacity() {
+		return mWriteQueueCapacity;
+	}
+
+	/**
+	 * @param capacity how many frames may wait to be written, applies to connections opened afterwards
+	 */
+	public ConnectionSettings setWriteQueueCapacity(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+		mWriteQueueCapacity = capacity;
+		return this;
+	}
+
+	public int getWriteQueuePolicy() {
+		return mWriteQueuePolicy;
+	}
+
+	/**
+	 * @param policy one of the {@link OverflowPolicy} constants, used when the write queue is full.
+	 * Defaults to {@link OverflowPolicy#FAIL}, a frame is never discarded unless dropping is chosen
+	 * here. BLOCK makes the sender wait, do not use it when sending from the main thread.
+	 */
+	public ConnectionSettings setWriteQueuePolicy(int policy) {
+		if (policy < OverflowPolicy.BLOCK || policy > OverflowPolicy.FAIL)
+			throw new IllegalArgumentException("unknown overflow policy " + policy);
+		mWriteQueuePolicy = policy;
+		return this;
+	}
+
+	public long getCoalesceWindowMillis() {
+		return mCoalesceWindowMillis;
+	}
+
+	public int getCoalesceMaxBytes() {
+		return mCoalesceMaxBytes;
+	}
+
+	/**
+	 * Frames queued within the window are concatenated into one write, as long as they fit
+	 * into the byte budget. A frame starting with {@link MessageBuilder#FLUSH_FLAG} and
+	 * {@link AmarinoHelper#flush(String)} send the batch right away.
+	 *
+	 * <p>With a window of 0 (the default) nothing waits, but frames which are already
+	 * queued are still written together.</p>
+	 *
+	 * @param windowMillis how long the first frame of a batch may wait for others
+	 * @param maxBytes the maximum size of one write, 512 by default
+	 */
+	public ConnectionSettings setCoalescing(long windowMillis, int maxBytes) {
+		if (windowMillis < 0 || maxBytes < 1)
+			throw new IllegalArgumentException("invalid coalescing window or budget");
+		mCoalesceWindowMillis = windowMillis;
+		mCoalesceMaxBytes = maxBytes;
+		return this;
+	}
+
+	public boolean isConflating(char flag) {
+		return !mConflatingFlags.isEmpty() && mConflatingFlags.containsKey(flag);
+	}
+
+	/**
+	 * Latest-value-wins mode for a flag, meant for high-rate control streams like servo positions.
+	 *
+	 * <p>While a frame sent with this flag is still waiting to be written, a newer one replaces
+	 * it in place. Arduino always gets the freshest value and at most one frame per flag waits
+	 * in the queue. Replaced frames are counted in {@link ConnectionStats#getSupersededFrames()}.</p>
+	 */
+	public ConnectionSettings setConflating(char flag, boolean conflating) {
+		if (conflating) {
+			mConflatingFlags.put(flag, Boolean.TRUE);
+		} else {
+			mConflatingFlags.remove(flag);
+		}
+		return this;
+	}
+
+	public int getMaxInboundFrameLength() {
+		return mMaxInboundFrameLength;
+	}
+
+	/**
+	 * Longer messages from Arduino are discarded up to their ACK_FLAG, so a device which never
+	 * ends its messages cannot make the service run out of memory. 4096 bytes by default.
+	 */
+	public ConnectionSettings setMaxInboundFrameLength(int maxLength) {
+		if (maxLength < 1) throw new IllegalArgumentException("maximum frame length must be positive");
+		mMaxInboundFrameLength = maxLength;
+		return this;
+	}
+
+	public boolean isBroadcastingReceivedData() {
+		return mBroadcastReceivedData;
+	}
+
+	/**
+	 * Listeners registered through {@link AmarinoHelper} in the service's own process get received
+	 * data directly. The {@link AmarinoIntent#ACTION_RECEIVED} broadcast is only needed by other apps,
+	 * turn it off if there are none. On by default.
+	 */
+	public ConnectionSettings setBroadcastReceivedData(boolean broadcast) {
+		mBroadcastReceivedData = broadcast;
+		return this;
+	}
+
+	public boolean isTypedInbound() {
+		return mTypedInbound;
+	}
+
+	/**
+	 * Turn on if the sketch announces the type of its messages, by sending one of the AmarinoIntent
+	 * type extras right after ARDUINO_MSG_FLAG. Off by default, the byte may also be a tab or a line
+	 * break at the start of a plain text message then.
+	 */
+	public ConnectionSettings setTypedInbound(boolean typed) {
+		mTypedInbound = typed;
+		return this;
+	}
+
+	public int getInboundRingCapacity() {
+		return mInboundRingCapacity;
+	}
+
+	/**
+	 * Received messages are also put into an {@link InboundRing} of this size, rounded up to a power
+	 * of two. 0 (the default) turns the ring off. The size is fixed once the ring was created.
+	 */
+	public ConnectionSettings setInboundRingCapacity(int capacity) {
+		if (capacity < 0) throw new IllegalArgumentException("capacity must not be negative");
+		mInboundRingCapacity = capacity;
+		return this;
+	}
+
+	/**
+	 * @return the aggregation of messages starting with the flag, or null
+	 */
+	public Aggregation getAggregation(char flag) {
+		return mAggregations.isEmpty() ? null : mAggregations.get(flag);
+	}
+
+	/**
+	 * Downsamples the numeric messages Arduino sends with the given flag, see {@link Aggregation}.
+	 *
+	 * @param aggregation null delivers every message again
+	 */
+	public ConnectionSettings setAggregation(char flag, Aggregation aggregation) {
+		if (aggregation != null) {
+			mAggregations.put(flag, aggregation);
+		} else {
+			mAggregations.remove(flag);
+		}
+		return this;
+	}
+
+	public int getReconnectMaxAttempts() {
+		return mReconnectMaxAttempts;
+	}
+
+	public long getReconnectInitialDelayMillis() {
+		return mReconnectInitialDelayMillis;
+	}
+
+	public long getReconnectMaxDelayMillis() {
+		return mReconnectMaxDelayMillis;
+	}
+
+	public float getReconnectJitter() {
+		return mReconnectJitter;
+	}
+
+	/**
+	 * Reconnects automatically when the connection drops, instead of reporting the device as
+	 * disconnected. Attempt n waits initialDelayMillis * 2^(n-1), at most maxDelayMillis, shortened
+	 * by a random share of up to jitter so that several devices do not retry in lockstep.
+	 *
+	 * <p>Frames sent in the meantime are queued and written once the device is back. Listeners get
+	 * {@link AmarinoListener#CONNECT_RECONNECTING} before every attempt, then CONNECT_SUCCEDED,
+	 * or onDisconnectResult when all attempts failed.</p>
+	 *
+	 * @param maxAttempts 0 (the default) turns reconnecting off
+	 * @param jitter between 0 and 1, 0.2 by default
+	 */
+	public ConnectionSettings setReconnectPolicy(int maxAttempts, long initialDelayMillis, long maxDelayMillis,
+			float jitter) {
+		if (maxAttempts < 0 || initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis)
+			throw new IllegalArgumentException("invalid reconnect attempts or delays");
+		if (jitter < 0 || jitter > 1) throw new IllegalArgumentException("jitter must be between 0 and 1");
+		mReconnectMaxAttempts = maxAttempts;
+		mReconnectInitialDelayMillis = initialDelayMillis;
+		mReconnectMaxDelayMillis = maxDelayMillis;
+		mReconnectJitter = jitter;
+		return this;
+	}
+
+	public long getConnectTimeoutMillis() {
+		return mConnectTimeoutMillis;
+	}
+
+	/**
+	 * Gives up a connect whose socket did not open in time, it fails as usual and is retried if a
+	 * reconnect policy is set.
+	 *
+	 * @param timeoutMillis 0 (the default) waits as long as opening the socket takes
+	 */
+	public ConnectionSettings setConnectTimeout(long timeoutMillis) {
+		if (timeoutMillis < 0) throw new IllegalArgumentException("timeout must not be negative");
+		mConnectTimeoutMillis = timeoutMillis;
+		return this;
+	}
+
+	public long getHeartbeatIntervalMillis() {
+		return mHeartbeatIntervalMillis;
+	}
+
+	public long getHeartbeatTimeoutMillis() {
+		return mHeartbeatTimeoutMillis;
+	}
+
+	/**
+	 * Sends {@link MessageBuilder#ALIVE_FLAG} frames to Arduino, which must echo them unchanged.
+	 * Their round-trip times are in {@link AmarinoHelper#getLatencyStats(String)}. A heartbeat which
+	 * is not echoed within the timeout closes the connection, so a dead link is noticed quickly and
+	 * reconnected if a reconnect policy is set. Applies to connections opened afterwards.
+	 *
+	 * @param intervalMillis time between heartbeats, 0 (the default) turns them off
+	 * @param timeoutMillis how long to wait for an echo
+	 */
+	public ConnectionSettings setHeartbeat(long intervalMillis, long timeoutMillis) {
+		if (intervalMillis < 0 || (intervalMillis > 0 && timeoutMillis < 1))
+			throw new IllegalArgumentException("invalid heartbeat interval or timeout");
+		mHeartbeatIntervalMillis = intervalMillis;
+		mHeartbeatTimeoutMillis = timeoutMillis;
+		return this;
+	}
+
+	/**
+	 * @param attempt starting at 1
+	 * @return how long to wait before the given reconnect attempt
+	 */
+	long getReconnectDelayMillis(int attempt, Random random) {
+		long delay = mReconnectInitialDelayMillis;
+		for (int i = 1; i < attempt && delay < mReconnectMaxDelayMillis; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, mReconnectMaxDelayMillis);
+		return delay - (long) (delay * mReconnectJitter * random.nextFloat());
+	}
+}
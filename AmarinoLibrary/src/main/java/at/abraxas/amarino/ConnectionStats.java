@@ -0,0 +1,88 @@
+package at.abraxas.amarino;
+
+/**
+ * Snapshot of the counters of one connection, see {@link AmarinoHelper#getConnectionStats(String)}.
+ */
+public class ConnectionStats {
+
+	private final String mAddress;
+	private final int mQueuedFrames;
+	private final long mDroppedFrames;
+	private final long mRejectedFrames;
+	private final long mSupersededFrames;
+	private final long mDiscardedInboundFrames;
+	private final long mRingOverflows;
+	private final long mConnectMillis;
+
+	ConnectionStats(String address, ConnectionWriter writer, FrameParser parser, InboundRing ring, long connectMillis) {
+		mAddress = address;
+		mQueuedFrames = writer.getQueueDepth();
+		mDroppedFrames = writer.getDroppedCount();
+		mRejectedFrames = writer.getRejectedCount();
+		mSupersededFrames = writer.getSupersededCount();
+		mDiscardedInboundFrames = parser.getOverflowCount();
+		mRingOverflows = (ring != null) ? ring.getOverflowCount() : 0;
+		mConnectMillis = connectMillis;
+	}
+
+	public String getAddress() {
+		return mAddress;
+	}
+
+	/**
+	 * @return frames waiting to be written
+	 */
+	public int getQueuedFrames() {
+		return mQueuedFrames;
+	}
+
+	/**
+	 * @return frames discarded because the write queue was full
+	 */
+	public long getDroppedFrames() {
+		return mDroppedFrames;
+	}
+
+	/**
+	 * @return frames refused with {@link OverflowPolicy#FAIL}
+	 */
+	public long getRejectedFrames() {
+		return mRejectedFrames;
+	}
+
+	/**
+	 * @return frames of a conflating flag replaced by a newer value before being written
+	 */
+	public long getSupersededFrames() {
+		return mSupersededFrames;
+	}
+
+	/**
+	 * @return messages from Arduino discarded for being longer than the maximum frame length
+	 */
+	public long getDiscardedInboundFrames() {
+		return mDiscardedInboundFrames;
+	}
+
+	/**
+	 * @return messages discarded because the {@link InboundRing} of the address was full
+	 */
+	public long getInboundRingOverflows() {
+		return mRingOverflows;
+	}
+
+	/**
+	 * @return how long it took from the connect request until the connection was established
+	 */
+	public long getConnectMillis() {
+		return mConnectMillis;
+	}
+
+	@Override
+	public String toString() {
+		return mAddress + ": queued=" + mQueuedFrames + ", dropped=" + mDroppedFrames
+				+ ", rejected=" + mRejectedFrames + ", superseded=" + mSupersededFrames
+				+ ", discarded inbound=" + mDiscardedInboundFrames + ", ring overflows=" + mRingOverflows
+				+ ", connected in " + mConnectMillis + " ms";
+	}
+}
@@ -0,0 +1,165 @@
+package at.abraxas.amarino;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Drains the {@link OutboundQueue} of one connection into its socket, so that a slow
+ * Bluetooth link never blocks the thread which sends data.
+ *
+ * <p>Frames are coalesced: everything queued within the coalescing window, up to the byte
+ * budget, is sent with one write. See {@link ConnectionSettings#setCoalescing(long, int)}.</p>
+ */
+class ConnectionWriter extends Thread {
+
+	private static final String TAG = "ConnectionWriter";
+
+	private final OutputStream mOutStream;
+	private final String mAddress;
+	private final ConnectionSettings mSettings;
+	private final OutboundQueue mQueue;
+	private final FrameBuffer mWriteBuffer = new FrameBuffer(256);
+
+	ConnectionWriter(OutputStream outStream, String address, ConnectionSettings settings) {
+		this(outStream, address, settings, new OutboundQueue(settings.getWriteQueueCapacity()));
+	}
+
+	/**
+	 * Creates a writer which drains the queue of an earlier connection, see {@link #detach()}.
+	 */
+	ConnectionWriter(OutputStream outStream, String address, ConnectionSettings settings, OutboundQueue queue) {
+		super("AmarinoWriter-" + address);
+		mOutStream = outStream;
+		mAddress = address;
+		mSettings = settings;
+		mQueue = queue;
+		mQueue.claim(this);
+	}
+
+	/**
+	 * Queues a frame, the bytes are copied so the caller may reuse its buffer.
+	 *
+	 * @return false if the frame was dropped or rejected by the overflow policy
+	 */
+	boolean enqueue(byte[] data, int offset, int length) {
+		return enqueue(data, offset, length, -1);
+	}
+
+	/**
+	 * Queues a frame sent with the given flag. If the flag is conflating, see
+	 * {@link ConnectionSettings#setConflating(char, boolean)}, an unsent frame with the
+	 * same flag is replaced instead.
+	 */
+	boolean enqueue(byte[] data, int offset, int length, char flag) {
+		return enqueue(data, offset, length, mSettings.isConflating(flag) ? flag : -1);
+	}
+
+	/**
+	 * Queues a frame only if there is room, whatever the overflow policy of the connection.
+	 * For callers which must not block.
+	 *
+	 * @return false if the queue is full or closed
+	 */
+	boolean offer(byte[] data, int offset, int length) {
+		return mQueue.offer(data, offset, length, OverflowPolicy.FAIL, -1);
+	}
+
+	private boolean enqueue(byte[] data, int offset, int length, int conflationKey) {
+		if (mQueue.offer(data, offset, length, mSettings.getWriteQueuePolicy(), conflationKey)) return true;
+
+		if (!mQueue.isClosed())
+			Logger.d(TAG, "outbound queue of " + mAddress + " full, frame not queued");
+		return false;
+	}
+
+	/**
+	 * Writes whatever is queued without waiting for the coalescing window to end.
+	 */
+	void flush() {
+		mQueue.requestFlush();
+	}
+
+	int getQueueDepth() {
+		return mQueue.size();
+	}
+
+	long getAcceptedCount() {
+		return mQueue.getAcceptedCount();
+	}
+
+	long getDroppedCount() {
+		return mQueue.getDroppedCount();
+	}
+
+	long getRejectedCount() {
+		return mQueue.getRejectedCount();
+	}
+
+	long getSupersededCount() {
+		return mQueue.getSupersededCount();
+	}
+
+	/**
+	 * Stops the writer, frames still queued are discarded.
+	 */
+	void close() {
+		mQueue.close();
+		interrupt();
+	}
+
+	/**
+	 * Stops the writer but keeps its queue open, frames are still accepted and wait for
+	 * the writer of the next connection to the device. A batch which was not written yet is
+	 * put back into the queue.
+	 */
+	void detach() {
+		interrupt();
+	}
+
+	/**
+	 * Waits until a detached writer has put back what it did not write.
+	 *
+	 * @return false if it is still running after the given time
+	 */
+	boolean awaitStopped(long millis) {
+		try {
+			join(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return !isAlive();
+	}
+
+	OutboundQueue getQueue() {
+		return mQueue;
+	}
+
+	/* The queue is only closed by close(). A failing socket leaves it open, the connection
+	 * is either cancelled or its queue handed to a reconnect, see AmarinoService.connectionLost.
+	 * A batch taken but not written is put back for the next writer then.
+	 */
+	@Override
+	public void run() {
+		if (mOutStream == null) return;
+
+		try {
+			while (true) {
+				mWriteBuffer.clear();
+				// small frames queued close to each other go out in a single write
+				if (mQueue.takeBatch(mWriteBuffer, mSettings.getCoalesceWindowMillis(),
+						mSettings.getCoalesceMaxBytes(), this) == 0) break;
+
+				mOutStream.write(mWriteBuffer.data, 0, mWriteBuffer.length);
+				if (Logger.DEBUG)
+					Logger.d(TAG, "send to Arduino: " + new String(mWriteBuffer.data, 0, mWriteBuffer.length));
+			}
+		} catch (InterruptedException e) {
+			// closed or detached
+			mQueue.putBack(mWriteBuffer);
+		} catch (IOException e) {
+			// the reading side notices the broken connection and disconnects
+			Logger.d(TAG, "writing to " + mAddress + " failed: " + e.getMessage());
+			mQueue.putBack(mWriteBuffer);
+		}
+	}
+}
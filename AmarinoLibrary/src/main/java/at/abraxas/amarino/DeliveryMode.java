@@ -0,0 +1,38 @@
+package at.abraxas.amarino;
+
+/**
+ * On which thread the callbacks of a listener run, see
+ * {@link AmarinoHelper#registerListener(android.content.Context, AmarinoListener, int)}.
+ */
+public interface DeliveryMode {
+
+	/**
+	 * Callbacks run on the main thread. This is the default. Events from other threads wait in a
+	 * bounded queue, the oldest received messages are dropped if the main thread falls behind.
+	 * Connection and pairing events are never dropped.
+	 */
+	public static final int MAIN = 1;
+
+	/**
+	 * Callbacks run on a pool of background threads shared by all listeners,
+	 * one at a time and in order for each listener. Meant for loggers, plotters and
+	 * other heavy consumers which must not stall the UI. Like MAIN, the oldest waiting received
+	 * messages are dropped if the listener falls behind.
+	 */
+	public static final int BACKGROUND = 2;
+
+	/**
+	 * Callbacks run on the thread which produced the event: received data on the reading
+	 * thread of its connection, everything else on the main thread. The lowest latency,
+	 * but a slow callback holds up reading from the device.
+	 */
+	public static final int CALLER = 3;
+
+	/**
+	 * Callbacks run on a thread of the listener's own, fed by a bounded mailbox. A slow listener
+	 * only falls behind itself, what happens when its mailbox is full is set by an
+	 * {@link OverflowPolicy}, see
+	 * {@link AmarinoHelper#registerListener(android.content.Context, AmarinoListener, int, int)}.
+	 */
+	public static final int MAILBOX = 4;
+}
@@ -0,0 +1,39 @@
+package at.abraxas.amarino;
+
+/**
+ * Growable byte buffer which is reused for many frames to avoid allocations.
+ */
+class FrameBuffer {
+
+	byte[] data;
+	int length;
+
+	FrameBuffer(int initialCapacity) {
+		data = new byte[initialCapacity];
+	}
+
+	void clear() {
+		length = 0;
+	}
+
+	void append(byte[] src, int offset, int count) {
+		ensureCapacity(length + count);
+		System.arraycopy(src, offset, data, length, count);
+		length += count;
+	}
+
+	void set(byte[] src, int offset, int count) {
+		length = 0;
+		append(src, offset, count);
+	}
+
+	void ensureCapacity(int capacity) {
+		if (capacity <= data.length) return;
+
+		int newCapacity = data.length * 2;
+		if (newCapacity < capacity) newCapacity = capacity;
+		byte[] newData = new byte[newCapacity];
+		System.arraycopy(data, 0, newData, 0, length);
+		data = newData;
+	}
+}
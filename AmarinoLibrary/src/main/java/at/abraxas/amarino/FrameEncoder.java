@@ -0,0 +1,537 @@
+package at.abraxas.amarino;
+
+import android.content.Intent;
+
+/**
+ * Streaming counterpart of {@link MessageBuilder#getMessage(Intent)}.
+ *
+ * <p>Flag, values, {@link MessageBuilder#DELIMITER} and {@link MessageBuilder#ACK_FLAG} are written
+ * straight into a reusable byte buffer. The resulting bytes are identical to the legacy String
+ * message encoded with ISO-8859-1, without building a String per value.</p>
+ *
+ * <p>An encoder is not thread-safe, and its buffer is overwritten by the next encode call.</p>
+ */
+public class FrameEncoder {
+
+	private static final String TAG = "FrameEncoder";
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private byte[] mBuffer;
+	private int mLength;
+
+	// set when the last char written was a high surrogate, ISO-8859-1 replaces a whole pair by one '?'
+	private boolean mPendingHighSurrogate;
+
+	// float and double digits are delegated to the platform to stay identical to String.valueOf
+	private final StringBuilder mScratch = new StringBuilder(32);
+
+	public FrameEncoder() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public FrameEncoder(int initialCapacity) {
+		mBuffer = new byte[initialCapacity > 0 ? initialCapacity : DEFAULT_CAPACITY];
+	}
+
+	/**
+	 * @return the internal buffer, valid from 0 to {@link #getLength()} until the next encode call
+	 */
+	public byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * Encodes the data of an {@link AmarinoIntent#ACTION_SEND} intent.
+	 *
+	 * @return false if the intent does not hold any data to send, the buffer is then empty
+	 */
+	public boolean encode(Intent intent) {
+		reset();
+
+		final int dataType = intent.getIntExtra(AmarinoIntent.EXTRA_DATA_TYPE, -1);
+		if (dataType == -1) {
+			Logger.d(TAG, "EXTRA_DATA_TYPE not found");
+			return false;
+		}
+
+		final char flag = intent.getCharExtra(AmarinoIntent.EXTRA_FLAG, '-');
+
+		switch (dataType) {
+			case AmarinoIntent.STRING_EXTRA:
+				encode(flag, intent.getStringExtra(AmarinoIntent.EXTRA_DATA));
+				return true;
+			case AmarinoIntent.DOUBLE_EXTRA:
+				encode(flag, intent.getDoubleExtra(AmarinoIntent.EXTRA_DATA, -1));
+				return true;
+			case AmarinoIntent.BYTE_EXTRA:
+				encode(flag, intent.getByteExtra(AmarinoIntent.EXTRA_DATA, (byte) -1));
+				return true;
+			case AmarinoIntent.INT_EXTRA:
+				encode(flag, intent.getIntExtra(AmarinoIntent.EXTRA_DATA, -1));
+				return true;
+			case AmarinoIntent.SHORT_EXTRA:
+				encode(flag, intent.getShortExtra(AmarinoIntent.EXTRA_DATA, (short) -1));
+				return true;
+			case AmarinoIntent.FLOAT_EXTRA:
+				encode(flag, intent.getFloatExtra(AmarinoIntent.EXTRA_DATA, -1f));
+				return true;
+			case AmarinoIntent.BOOLEAN_EXTRA:
+				encode(flag, intent.getBooleanExtra(AmarinoIntent.EXTRA_DATA, false));
+				return true;
+			case AmarinoIntent.CHAR_EXTRA:
+				encode(flag, intent.getCharExtra(AmarinoIntent.EXTRA_DATA, 'x'));
+				return true;
+			case AmarinoIntent.LONG_EXTRA:
+				encode(flag, intent.getLongExtra(AmarinoIntent.EXTRA_DATA, -1l));
+				return true;
+			case AmarinoIntent.INT_ARRAY_EXTRA:
+				return encode(flag, intent.getIntArrayExtra(AmarinoIntent.EXTRA_DATA));
+			case AmarinoIntent.CHAR_ARRAY_EXTRA:
+				return encode(flag, intent.getCharArrayExtra(AmarinoIntent.EXTRA_DATA));
+			case AmarinoIntent.BYTE_ARRAY_EXTRA:
+				return encode(flag, intent.getByteArrayExtra(AmarinoIntent.EXTRA_DATA));
+			case AmarinoIntent.SHORT_ARRAY_EXTRA:
+				return encode(flag, intent.getShortArrayExtra(AmarinoIntent.EXTRA_DATA));
+			case AmarinoIntent.STRING_ARRAY_EXTRA:
+				return encode(flag, intent.getStringArrayExtra(AmarinoIntent.EXTRA_DATA));
+			case AmarinoIntent.DOUBLE_ARRAY_EXTRA:
+				return encode(flag, intent.getDoubleArrayExtra(AmarinoIntent.EXTRA_DATA));
+			case AmarinoIntent.FLOAT_ARRAY_EXTRA:
+				return encode(flag, intent.getFloatArrayExtra(AmarinoIntent.EXTRA_DATA));
+			case AmarinoIntent.BOOLEAN_ARRAY_EXTRA:
+				return encode(flag, intent.getBooleanArrayExtra(AmarinoIntent.EXTRA_DATA));
+			case AmarinoIntent.LONG_ARRAY_EXTRA:
+				return encode(flag, intent.getLongArrayExtra(AmarinoIntent.EXTRA_DATA));
+		}
+		return false;
+	}
+
+	/* ---------- single values ---------- */
+
+	public void encode(char flag, String s) {
+		reset();
+		if (s == null) {
+			putChar('0');
+		} else {
+			putChar(flag);
+			putString(s);
+		}
+		putChar(MessageBuilder.ACK_FLAG);
+	}
+
+	public void encode(char flag, boolean b) {
+		reset();
+		putChar(flag);
+		putLong(b ? 1 : 0);
+		putChar(MessageBuilder.ACK_FLAG);
+	}
+
+	public void encode(char flag, char c) {
+		reset();
+		putChar(flag);
+		putChar(c);
+		putChar(MessageBuilder.ACK_FLAG);
+	}
+
+	public void encode(char flag, long l) {
+		reset();
+		putChar(flag);
+		putLong(l);
+		putChar(MessageBuilder.ACK_FLAG);
+	}
+
+	public void encode(char flag, float f) {
+		reset();
+		putChar(flag);
+		putFloat(f);
+		putChar(MessageBuilder.ACK_FLAG);
+	}
+
+	public void encode(char flag, double d) {
+		reset();
+		putChar(flag);
+		putDouble(d);
+		putChar(MessageBuilder.ACK_FLAG);
+	}
+
+	/* ---------- arrays, a null array encodes nothing ---------- */
+
+	public boolean encode(char flag, int[] values) {
+		reset();
+		if (values == null) return false;
+		putChar(flag);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) putChar(MessageBuilder.DELIMITER);
+			putLong(values[i]);
+		}
+		putChar(MessageBuilder.ACK_FLAG);
+		return true;
+	}
+
+	public boolean encode(char flag, char[] values) {
+		reset();
+		if (values == null) return false;
+		putChar(flag);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) putChar(MessageBuilder.DELIMITER);
+			putChar(values[i]);
+		}
+		putChar(MessageBuilder.ACK_FLAG);
+		return true;
+	}
+
+	public boolean encode(char flag, byte[] values) {
+		reset();
+		if (values == null) return false;
+		putChar(flag);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) putChar(MessageBuilder.DELIMITER);
+			putLong(values[i]);
+		}
+		putChar(MessageBuilder.ACK_FLAG);
+		return true;
+	}
+
+	public boolean encode(char flag, short[] values) {
+		reset();
+		if (values == null) return false;
+		putChar(flag);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) putChar(MessageBuilder.DELIMITER);
+			putLong(values[i]);
+		}
+		putChar(MessageBuilder.ACK_FLAG);
+		return true;
+	}
+
+	public boolean encode(char flag, String[] values) {
+		reset();
+		if (values == null) return false;
+		putChar(flag);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) putChar(MessageBuilder.DELIMITER);
+			// String.valueOf(null) of the legacy builder
+			putString(values[i] != null ? values[i] : "null");
+		}
+		putChar(MessageBuilder.ACK_FLAG);
+		return true;
+	}
+
+	public boolean encode(char flag, double[] values) {
+		reset();
+		if (values == null) return false;
+		putChar(flag);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) putChar(MessageBuilder.DELIMITER);
+			putDouble(values[i]);
+		}
+		putChar(MessageBuilder.ACK_FLAG);
+		return true;
+	}
+
+	public boolean encode(char flag, float[] values) {
+		reset();
+		if (values == null) return false;
+		putChar(flag);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) putChar(MessageBuilder.DELIMITER);
+			putFloat(values[i]);
+		}
+		putChar(MessageBuilder.ACK_FLAG);
+		return true;
+	}
+
+	public boolean encode(char flag, boolean[] values) {
+		reset();
+		if (values == null) return false;
+		putChar(flag);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) putChar(MessageBuilder.DELIMITER);
+			putLong(values[i] ? 1 : 0);
+		}
+		putChar(MessageBuilder.ACK_FLAG);
+		return true;
+	}
+
+	public boolean encode(char flag, long[] values) {
+		reset();
+		if (values == null) return false;
+		putChar(flag);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) putChar(MessageBuilder.DELIMITER);
+			putLong(values[i]);
+		}
+		putChar(MessageBuilder.ACK_FLAG);
+		return true;
+	}
+
+	/* ---------- binary frames, see MessageBuilder#BINARY_FLAG ---------- */
+
+	/**
+	 * Encodes the data of an {@link AmarinoIntent#ACTION_SEND} intent as binary frame.
+	 *
+	 * @return false if the data type has no binary representation (String, long) or the data
+	 * is missing or too long, the buffer is then empty
+	 */
+	public boolean encodeBinary(Intent intent) {
+		reset();
+
+		final int dataType = intent.getIntExtra(AmarinoIntent.EXTRA_DATA_TYPE, -1);
+		final char flag = intent.getCharExtra(AmarinoIntent.EXTRA_FLAG, '-');
+
+		switch (dataType) {
+			case AmarinoIntent.BOOLEAN_EXTRA:
+				encodeBinary(flag, intent.getBooleanExtra(AmarinoIntent.EXTRA_DATA, false));
+				return true;
+			case AmarinoIntent.BYTE_EXTRA:
+				encodeBinary(flag, intent.getByteExtra(AmarinoIntent.EXTRA_DATA, (byte) -1));
+				return true;
+			case AmarinoIntent.CHAR_EXTRA:
+				encodeBinary(flag, intent.getCharExtra(AmarinoIntent.EXTRA_DATA, 'x'));
+				return true;
+			case AmarinoIntent.SHORT_EXTRA:
+				encodeBinary(flag, intent.getShortExtra(AmarinoIntent.EXTRA_DATA, (short) -1));
+				return true;
+			case AmarinoIntent.INT_EXTRA:
+				encodeBinary(flag, intent.getIntExtra(AmarinoIntent.EXTRA_DATA, -1));
+				return true;
+			case AmarinoIntent.FLOAT_EXTRA:
+				encodeBinary(flag, intent.getFloatExtra(AmarinoIntent.EXTRA_DATA, -1f));
+				return true;
+			case AmarinoIntent.DOUBLE_EXTRA:
+				encodeBinary(flag, (float) intent.getDoubleExtra(AmarinoIntent.EXTRA_DATA, -1));
+				return true;
+			case AmarinoIntent.BOOLEAN_ARRAY_EXTRA:
+				return encodeBinary(flag, intent.getBooleanArrayExtra(AmarinoIntent.EXTRA_DATA));
+			case AmarinoIntent.BYTE_ARRAY_EXTRA:
+				return encodeBinary(flag, intent.getByteArrayExtra(AmarinoIntent.EXTRA_DATA));
+			case AmarinoIntent.CHAR_ARRAY_EXTRA:
+				return encodeBinary(flag, intent.getCharArrayExtra(AmarinoIntent.EXTRA_DATA));
+			case AmarinoIntent.SHORT_ARRAY_EXTRA:
+				return encodeBinary(flag, intent.getShortArrayExtra(AmarinoIntent.EXTRA_DATA));
+			case AmarinoIntent.INT_ARRAY_EXTRA:
+				return encodeBinary(flag, intent.getIntArrayExtra(AmarinoIntent.EXTRA_DATA));
+			case AmarinoIntent.FLOAT_ARRAY_EXTRA:
+				return encodeBinary(flag, intent.getFloatArrayExtra(AmarinoIntent.EXTRA_DATA));
+			case AmarinoIntent.DOUBLE_ARRAY_EXTRA:
+				return encodeBinary(flag, intent.getDoubleArrayExtra(AmarinoIntent.EXTRA_DATA));
+		}
+		return false;
+	}
+
+	public void encodeBinary(char flag, boolean b) {
+		putBinaryHeader(flag, AmarinoIntent.BOOLEAN_EXTRA, 1);
+		mBuffer[mLength++] = (byte) (b ? 1 : 0);
+	}
+
+	public void encodeBinary(char flag, byte b) {
+		putBinaryHeader(flag, AmarinoIntent.BYTE_EXTRA, 1);
+		mBuffer[mLength++] = b;
+	}
+
+	public void encodeBinary(char flag, char c) {
+		putBinaryHeader(flag, AmarinoIntent.CHAR_EXTRA, 1);
+		putChar(c);
+	}
+
+	public void encodeBinary(char flag, short sh) {
+		putBinaryHeader(flag, AmarinoIntent.SHORT_EXTRA, 1);
+		putInt16(sh);
+	}
+
+	public void encodeBinary(char flag, int i) {
+		putBinaryHeader(flag, AmarinoIntent.INT_EXTRA, 1);
+		putInt32(i);
+	}
+
+	public void encodeBinary(char flag, float f) {
+		putBinaryHeader(flag, AmarinoIntent.FLOAT_EXTRA, 1);
+		putInt32(Float.floatToIntBits(f));
+	}
+
+	public boolean encodeBinary(char flag, boolean[] values) {
+		reset();
+		if (values == null || !putBinaryArrayHeader(flag, AmarinoIntent.BOOLEAN_ARRAY_EXTRA, values.length)) return false;
+		int bytes = (values.length + 7) / 8;
+		ensureCapacity(bytes);
+		for (int i = 0; i < bytes; i++) mBuffer[mLength + i] = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i]) mBuffer[mLength + (i >> 3)] |= (byte) (1 << (i & 7));
+		}
+		mLength += bytes;
+		return true;
+	}
+
+	public boolean encodeBinary(char flag, byte[] values) {
+		reset();
+		if (values == null || !putBinaryArrayHeader(flag, AmarinoIntent.BYTE_ARRAY_EXTRA, values.length)) return false;
+		ensureCapacity(values.length);
+		System.arraycopy(values, 0, mBuffer, mLength, values.length);
+		mLength += values.length;
+		return true;
+	}
+
+	public boolean encodeBinary(char flag, char[] values) {
+		reset();
+		if (values == null || !putBinaryArrayHeader(flag, AmarinoIntent.CHAR_ARRAY_EXTRA, values.length)) return false;
+		ensureCapacity(values.length);
+		for (char c : values) {
+			// one byte per char, surrogate pairs must not collapse here
+			mBuffer[mLength++] = (byte) ((c <= 0xFF) ? c : '?');
+		}
+		return true;
+	}
+
+	public boolean encodeBinary(char flag, short[] values) {
+		reset();
+		if (values == null || !putBinaryArrayHeader(flag, AmarinoIntent.SHORT_ARRAY_EXTRA, values.length)) return false;
+		ensureCapacity(values.length * 2);
+		for (short sh : values) putInt16(sh);
+		return true;
+	}
+
+	public boolean encodeBinary(char flag, int[] values) {
+		reset();
+		if (values == null || !putBinaryArrayHeader(flag, AmarinoIntent.INT_ARRAY_EXTRA, values.length)) return false;
+		ensureCapacity(values.length * 4);
+		for (int i : values) putInt32(i);
+		return true;
+	}
+
+	public boolean encodeBinary(char flag, float[] values) {
+		reset();
+		if (values == null || !putBinaryArrayHeader(flag, AmarinoIntent.FLOAT_ARRAY_EXTRA, values.length)) return false;
+		ensureCapacity(values.length * 4);
+		for (float f : values) putInt32(Float.floatToIntBits(f));
+		return true;
+	}
+
+	/**
+	 * Arduino doubles are 4-byte floats, so values are narrowed and tagged as float array.
+	 */
+	public boolean encodeBinary(char flag, double[] values) {
+		reset();
+		if (values == null || !putBinaryArrayHeader(flag, AmarinoIntent.FLOAT_ARRAY_EXTRA, values.length)) return false;
+		ensureCapacity(values.length * 4);
+		for (double d : values) putInt32(Float.floatToIntBits((float) d));
+		return true;
+	}
+
+	private boolean putBinaryArrayHeader(char flag, int dataType, int count) {
+		if (count > MessageBuilder.BINARY_MAX_COUNT) {
+			Logger.d(TAG, "too many values for a binary frame: " + count);
+			return false;
+		}
+		putBinaryHeader(flag, dataType, count);
+		return true;
+	}
+
+	private void putBinaryHeader(char flag, int dataType, int count) {
+		reset();
+		ensureCapacity(MessageBuilder.BINARY_HEADER_LENGTH + 4);
+		mBuffer[mLength++] = (byte) MessageBuilder.BINARY_FLAG;
+		putChar(flag);
+		mPendingHighSurrogate = false;
+		mBuffer[mLength++] = (byte) dataType;
+		putInt16(count);
+	}
+
+	private void putInt16(int value) {
+		ensureCapacity(2);
+		mBuffer[mLength++] = (byte) value;
+		mBuffer[mLength++] = (byte) (value >> 8);
+	}
+
+	private void putInt32(int value) {
+		ensureCapacity(4);
+		mBuffer[mLength++] = (byte) value;
+		mBuffer[mLength++] = (byte) (value >> 8);
+		mBuffer[mLength++] = (byte) (value >> 16);
+		mBuffer[mLength++] = (byte) (value >> 24);
+	}
+
+	/* ---------- low level writers ---------- */
+
+	private void reset() {
+		mLength = 0;
+		mPendingHighSurrogate = false;
+	}
+
+	private void ensureCapacity(int extra) {
+		int required = mLength + extra;
+		if (required <= mBuffer.length) return;
+
+		int newCapacity = mBuffer.length * 2;
+		if (newCapacity < required) newCapacity = required;
+		byte[] newBuffer = new byte[newCapacity];
+		System.arraycopy(mBuffer, 0, newBuffer, 0, mLength);
+		mBuffer = newBuffer;
+	}
+
+	/**
+	 * Writes one char the way String.getBytes("ISO-8859-1") would:
+	 * unmappable chars and surrogate pairs become a single '?'.
+	 */
+	private void putChar(char c) {
+		if (mPendingHighSurrogate) {
+			mPendingHighSurrogate = false;
+			if (Character.isLowSurrogate(c)) return;
+		}
+		ensureCapacity(1);
+		if (c <= 0xFF) {
+			mBuffer[mLength++] = (byte) c;
+		} else {
+			mBuffer[mLength++] = '?';
+			mPendingHighSurrogate = Character.isHighSurrogate(c);
+		}
+	}
+
+	private void putString(CharSequence s) {
+		ensureCapacity(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			putChar(s.charAt(i));
+		}
+	}
+
+	private void putLong(long value) {
+		mPendingHighSurrogate = false;
+		if (value == Long.MIN_VALUE) {
+			// cannot be negated, rare enough to take the slow path
+			putString(String.valueOf(value));
+			return;
+		}
+
+		ensureCapacity(20);
+		if (value < 0) {
+			mBuffer[mLength++] = '-';
+			value = -value;
+		}
+
+		int digits = 1;
+		for (long v = value; v >= 10; v /= 10) digits++;
+
+		int pos = mLength + digits;
+		mLength = pos;
+		do {
+			mBuffer[--pos] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+	}
+
+	private void putFloat(float f) {
+		mScratch.setLength(0);
+		mScratch.append(f);
+		putString(mScratch);
+	}
+
+	private void putDouble(double d) {
+		mScratch.setLength(0);
+		mScratch.append(d);
+		putString(mScratch);
+	}
+}
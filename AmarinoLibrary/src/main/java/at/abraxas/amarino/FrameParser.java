@@ -0,0 +1,127 @@
+package at.abraxas.amarino;
+
+/**
+ * Splits the raw bytes read from a connection into messages.
+ *
+ * <p>A message ends with {@link MessageBuilder#ACK_FLAG}, {@link MessageBuilder#ARDUINO_MSG_FLAG}
+ * is skipped. With {@link ConnectionSettings#setTypedInbound(boolean)}, a message whose byte following
+ * ARDUINO_MSG_FLAG is one of the AmarinoIntent type extras is typed and decoded, see
+ * {@link AmarinoData}. If it does not decode, the byte was text and the message is passed on untyped
+ * with the byte restored.
+ * Messages may be split across any number of reads. The parser keeps one buffer which
+ * grows up to the maximum frame length, so nothing is allocated per byte or per message.</p>
+ *
+ * <p>If a message gets longer than the maximum frame length, e.g. because Arduino never sends
+ * the ACK_FLAG, it is discarded up to the next ACK_FLAG and parsing resumes from there.</p>
+ *
+ * <p>A parser belongs to the reading thread of one connection and is not thread-safe.</p>
+ */
+class FrameParser {
+
+	interface FrameHandler {
+		/**
+		 * @param frame the message without control flags, only valid during the call
+		 * @param dataType the type announced by Arduino, 0 for untyped messages
+		 * @param data the decoded values of a typed message, null for untyped messages.
+		 * Only valid during the call
+		 */
+		void onFrame(byte[] frame, int length, int dataType, AmarinoData data);
+	}
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final ConnectionSettings mSettings;
+	private final FrameHandler mHandler;
+	// decoded typed messages, reused
+	private final AmarinoData mData = new AmarinoData();
+
+	private byte[] mFrame = new byte[INITIAL_CAPACITY];
+	private int mLength;
+	private int mDataType;
+	// the last byte was an ARDUINO_MSG_FLAG at the start of a message
+	private boolean mAfterStartFlag;
+	// an oversized frame is being skipped until its ACK_FLAG
+	private boolean mDiscarding;
+	// read by other threads for statistics
+	private volatile long mOverflows;
+
+	FrameParser(ConnectionSettings settings, FrameHandler handler) {
+		mSettings = settings;
+		mHandler = handler;
+	}
+
+	void parse(byte[] data, int offset, int length) {
+		final int maxLength = mSettings.getMaxInboundFrameLength();
+		final int end = offset + length;
+
+		for (int i = offset; i < end; i++) {
+			final byte b = data[i];
+
+			if (mAfterStartFlag) {
+				mAfterStartFlag = false;
+				if (b != MessageBuilder.ACK_FLAG && InboundDecoder.isDataType(b) && mSettings.isTypedInbound()) {
+					mDataType = b;
+					continue;
+				}
+			}
+
+			if (b == MessageBuilder.ACK_FLAG) {
+				if (mDiscarding) {
+					mDiscarding = false;
+				} else {
+					deliver(maxLength);
+				}
+				mLength = 0;
+				mDataType = 0;
+			} else if (mDiscarding) {
+				// skip the rest of an oversized frame
+			} else if (b == MessageBuilder.ARDUINO_MSG_FLAG) {
+				mAfterStartFlag = mLength == 0 && mDataType == 0;
+			} else if (mLength >= maxLength) {
+				mOverflows++;
+				mDiscarding = true;
+				mLength = 0;
+				Logger.d("FrameParser", "inbound frame longer than " + maxLength + " bytes discarded");
+			} else {
+				if (mLength == mFrame.length) grow(maxLength);
+				mFrame[mLength++] = b;
+			}
+		}
+	}
+
+	private void deliver(int maxLength) {
+		if (mDataType == 0) {
+			mHandler.onFrame(mFrame, mLength, 0, null);
+			return;
+		}
+		if (InboundDecoder.decode(mDataType, mFrame, mLength, mData)) {
+			mHandler.onFrame(mFrame, mLength, mDataType, mData);
+			return;
+		}
+
+		Logger.d("FrameParser", "message does not match its type " + mDataType + ", passed on untyped");
+		if (mLength >= maxLength) {
+			// no room to restore the type byte
+			mOverflows++;
+			return;
+		}
+		if (mLength == mFrame.length) grow(maxLength);
+		System.arraycopy(mFrame, 0, mFrame, 1, mLength);
+		mFrame[0] = (byte) mDataType;
+		mHandler.onFrame(mFrame, mLength + 1, 0, null);
+	}
+
+	/**
+	 * @return how many oversized frames were discarded
+	 */
+	long getOverflowCount() {
+		return mOverflows;
+	}
+
+	private void grow(int maxLength) {
+		int newCapacity = Math.min(mFrame.length * 2, maxLength);
+		byte[] newFrame = new byte[newCapacity];
+		System.arraycopy(mFrame, 0, newFrame, 0, mLength);
+		mFrame = newFrame;
+	}
+}
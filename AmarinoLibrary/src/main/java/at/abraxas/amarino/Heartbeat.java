@@ -0,0 +1,157 @@
+package at.abraxas.amarino;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends alive frames to Arduino and measures the round trip until they are echoed,
+ * see {@link ConnectionSettings#setHeartbeat(long, long)}.
+ *
+ * <p>A heartbeat is ALIVE_FLAG, a sequence number and ACK_FLAG. The sketch sends the same bytes
+ * back, without ARDUINO_MSG_FLAG. When an echo does not arrive within the timeout the link is
+ * considered dead, long before a blocking read on the socket would fail.</p>
+ */
+class Heartbeat implements Runnable {
+
+	interface Listener {
+		void onLinkDead();
+
+		/**
+		 * @return true while the reading thread waits for a stream subscriber, echoes cannot arrive then
+		 */
+		boolean isReadStalled();
+	}
+
+	private static final String TAG = "Heartbeat";
+
+	// most recent round-trip times kept for the percentiles
+	private static final int SAMPLES = 1024;
+
+	private static final ScheduledThreadPoolExecutor sScheduler = new ScheduledThreadPoolExecutor(1,
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "AmarinoHeartbeat");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final ConnectionWriter mWriter;
+	private final String mAddress;
+	private final long mTimeoutNanos;
+	private final Listener mListener;
+	private final byte[] mFrame = new byte[16];
+	private ScheduledFuture<?> mFuture;
+
+	// guarded by this
+	private int mSequence;
+	private boolean mOutstanding;
+	private long mSentAt;
+
+	private final LatencyRecorder mLatencies = new LatencyRecorder(SAMPLES);
+
+	Heartbeat(ConnectionWriter writer, String address, long timeoutMillis, Listener listener) {
+		mWriter = writer;
+		mAddress = address;
+		mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		mListener = listener;
+	}
+
+	void start(long intervalMillis) {
+		mFuture = sScheduler.scheduleWithFixedDelay(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	void stop() {
+		if (mFuture != null) mFuture.cancel(false);
+	}
+
+	@Override
+	public void run() {
+		int sequence;
+		synchronized (this) {
+			if (mOutstanding) {
+				if (System.nanoTime() - mSentAt < mTimeoutNanos) return;
+				if (mListener.isReadStalled()) {
+					// the link cannot be judged, a late echo is ignored and the next beat tries again
+					mOutstanding = false;
+					return;
+				}
+
+				mLatencies.recordTimeout();
+				mOutstanding = false;
+				Logger.d(TAG, "no heartbeat from " + mAddress + ", link is dead");
+				stop();
+				sequence = -1;
+			} else {
+				// armed before the frame is queued so an early echo is not missed
+				mSequence = (mSequence + 1) & 0xFFFF;
+				sequence = mSequence;
+				mOutstanding = true;
+				mSentAt = System.nanoTime();
+			}
+		}
+
+		if (sequence < 0) {
+			mListener.onLinkDead();
+			return;
+		}
+
+		// the scheduler thread is shared by all connections, a full queue must not hold it
+		int length = encode(sequence);
+		if (!mWriter.offer(mFrame, 0, length)) {
+			synchronized (this) {
+				// the beat is skipped, a full queue says nothing about the link
+				if (sequence == mSequence) mOutstanding = false;
+			}
+			return;
+		}
+		// do not wait for the coalescing window, it would add to the round trip
+		mWriter.flush();
+	}
+
+	/**
+	 * @return true if the frame is a heartbeat echo, it is not meant for anyone else then
+	 */
+	static boolean isEcho(byte[] frame, int length, int dataType) {
+		return dataType == 0 && length > 0 && frame[0] == MessageBuilder.ALIVE_FLAG;
+	}
+
+	/**
+	 * Called by the reading thread for every echo.
+	 */
+	void onEcho(byte[] frame, int length) {
+		final long now = System.nanoTime();
+		int sequence = 0;
+		for (int i = 1; i < length; i++) {
+			int digit = frame[i] - '0';
+			if (digit < 0 || digit > 9) return;
+			sequence = sequence * 10 + digit;
+		}
+
+		synchronized (this) {
+			// late echoes of heartbeats which already timed out are ignored
+			if (!mOutstanding || sequence != mSequence) return;
+
+			mOutstanding = false;
+			mLatencies.record((now - mSentAt) / 1000);
+		}
+	}
+
+	LatencyStats getStats() {
+		return mLatencies.snapshot();
+	}
+
+	private int encode(int sequence) {
+		int length = 0;
+		mFrame[length++] = MessageBuilder.ALIVE_FLAG;
+		String digits = Integer.toString(sequence);
+		for (int i = 0; i < digits.length(); i++) {
+			mFrame[length++] = (byte) digits.charAt(i);
+		}
+		mFrame[length++] = MessageBuilder.ACK_FLAG;
+		return length;
+	}
+}
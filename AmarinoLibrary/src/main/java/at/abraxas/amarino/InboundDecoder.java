@@ -0,0 +1,170 @@
+package at.abraxas.amarino;
+
+/**
+ * Decodes the text of a typed message from Arduino into an {@link AmarinoData}
+ * without creating intermediate Strings for numbers.
+ *
+ * <p>Arrays are separated by {@link MessageBuilder#DELIMITER}, like the messages sent to Arduino.</p>
+ */
+class InboundDecoder {
+
+	private static final double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private InboundDecoder() {
+	}
+
+	/**
+	 * @return true if the type is one of the AmarinoIntent type extras
+	 */
+	static boolean isDataType(int type) {
+		return type >= AmarinoIntent.BOOLEAN_EXTRA && type <= AmarinoIntent.STRING_ARRAY_EXTRA;
+	}
+
+	/**
+	 * @return false if the text does not match the type, out is then undefined
+	 */
+	static boolean decode(int type, byte[] frame, int length, AmarinoData out) {
+		return decode(type, frame, 0, length, out);
+	}
+
+	/**
+	 * Like {@link #decode(int, byte[], int, AmarinoData)}, for values starting at the given offset.
+	 */
+	static boolean decode(int type, byte[] frame, int offset, int length, AmarinoData out) {
+		out.reset(type);
+
+		boolean array = (type % 2) == 0;
+		int elementType = array ? type - 1 : type;
+		final int end = offset + length;
+
+		if (!array) return decodeValue(elementType, frame, offset, end, out);
+
+		if (length == 0) return true;
+		int start = offset;
+		for (int i = offset; i <= end; i++) {
+			if (i == end || frame[i] == MessageBuilder.DELIMITER) {
+				if (!decodeValue(elementType, frame, start, i, out)) return false;
+				start = i + 1;
+			}
+		}
+		return true;
+	}
+
+	private static boolean decodeValue(int type, byte[] frame, int start, int end, AmarinoData out) {
+		switch (type) {
+			case AmarinoIntent.STRING_EXTRA:
+				out.addString(new String(frame, start, end - start));
+				return true;
+			case AmarinoIntent.CHAR_EXTRA:
+				if (end - start != 1) return false;
+				out.addLong(frame[start] & 0xFF);
+				return true;
+			case AmarinoIntent.FLOAT_EXTRA:
+			case AmarinoIntent.DOUBLE_EXTRA: {
+				double value = parseDouble(frame, start, end);
+				if (value != value && !isNaN(frame, start, end)) return false;
+				out.addDouble(value);
+				return true;
+			}
+			case AmarinoIntent.BOOLEAN_EXTRA:
+			case AmarinoIntent.BYTE_EXTRA:
+			case AmarinoIntent.SHORT_EXTRA:
+			case AmarinoIntent.INT_EXTRA:
+			case AmarinoIntent.LONG_EXTRA: {
+				if (!isInteger(frame, start, end)) return false;
+				out.addLong(parseLong(frame, start, end));
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isInteger(byte[] frame, int start, int end) {
+		if (start < end && (frame[start] == '-' || frame[start] == '+')) start++;
+		if (start == end) return false;
+		for (int i = start; i < end; i++) {
+			if (frame[i] < '0' || frame[i] > '9') return false;
+		}
+		return true;
+	}
+
+	private static long parseLong(byte[] frame, int start, int end) {
+		boolean negative = frame[start] == '-';
+		if (negative || frame[start] == '+') start++;
+
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			value = value * 10 + (frame[i] - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses what Arduino's Serial.print produces for floats, including "nan", "inf" and "ovf".
+	 *
+	 * @return the value, NaN if the text is no number
+	 */
+	private static double parseDouble(byte[] frame, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (frame[i] == '-' || frame[i] == '+')) {
+			negative = frame[i] == '-';
+			i++;
+		}
+
+		if (matches(frame, i, end, "inf")) return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+
+		long mantissa = 0;
+		int exponent = 0;
+		int digits = 0;
+		boolean dot = false;
+		for (; i < end; i++) {
+			byte b = frame[i];
+			if (b >= '0' && b <= '9') {
+				digits++;
+				if (mantissa < 100000000000000000L) {
+					mantissa = mantissa * 10 + (b - '0');
+					if (dot) exponent--;
+				} else if (!dot) {
+					exponent++;
+				}
+			} else if (b == '.' && !dot) {
+				dot = true;
+			} else {
+				break;
+			}
+		}
+		if (digits == 0) return Double.NaN;
+
+		if (i < end && (frame[i] == 'e' || frame[i] == 'E')) {
+			i++;
+			if (!isInteger(frame, i, end)) return Double.NaN;
+			exponent += (int) parseLong(frame, i, end);
+			i = end;
+		}
+		if (i != end) return Double.NaN;
+
+		double value = mantissa;
+		if (exponent != 0) {
+			int abs = Math.abs(exponent);
+			double scale = (abs < POWERS_OF_TEN.length) ? POWERS_OF_TEN[abs] : Math.pow(10, abs);
+			value = (exponent < 0) ? value / scale : value * scale;
+		}
+		return negative ? -value : value;
+	}
+
+	private static boolean isNaN(byte[] frame, int start, int end) {
+		return matches(frame, start, end, "nan") || matches(frame, start, end, "ovf");
+	}
+
+	private static boolean matches(byte[] frame, int start, int end, String text) {
+		if (end - start != text.length()) return false;
+		for (int i = 0; i < text.length(); i++) {
+			if (frame[start + i] != text.charAt(i)) return false;
+		}
+		return true;
+	}
+}
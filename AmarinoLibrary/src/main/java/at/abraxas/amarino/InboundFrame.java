@@ -0,0 +1,46 @@
+package at.abraxas.amarino;
+
+/**
+ * A message taken from an {@link InboundRing}. Reuse one instance for every poll,
+ * its buffer only grows when a longer message arrives.
+ */
+public class InboundFrame {
+
+	final FrameBuffer mBuffer = new FrameBuffer(64);
+	int mDataType;
+	long mTimestamp;
+
+	/**
+	 * @return the backing array, valid up to {@link #getLength()}
+	 */
+	public byte[] getData() {
+		return mBuffer.data;
+	}
+
+	public int getLength() {
+		return mBuffer.length;
+	}
+
+	/**
+	 * @return the type byte Arduino sent after {@link MessageBuilder#ARDUINO_MSG_FLAG},
+	 * one of the AmarinoIntent type extras, or 0 for untyped messages
+	 */
+	public int getDataType() {
+		return mDataType;
+	}
+
+	/**
+	 * @return when the message was complete, in {@link System#nanoTime()} time
+	 */
+	public long getTimestamp() {
+		return mTimestamp;
+	}
+
+	/**
+	 * @return the message as String, this allocates
+	 */
+	@Override
+	public String toString() {
+		return new String(mBuffer.data, 0, mBuffer.length);
+	}
+}
@@ -0,0 +1,148 @@
+package at.abraxas.amarino;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free hand-off of received messages from the reading thread of a connection
+ * to exactly one consumer thread, see {@link AmarinoHelper#getInboundRing(String)}.
+ *
+ * <p>Slots are allocated once and reused, so neither side allocates once the slots have grown
+ * to the usual message length. When the consumer falls behind, new messages are discarded and
+ * counted in {@link #getOverflowCount()}, the reading thread never waits.</p>
+ *
+ * <p>Only one thread may call {@link #poll(InboundFrame)} and {@link #take(InboundFrame, long)}.</p>
+ */
+public class InboundRing {
+
+	private static final ConcurrentHashMap<String, InboundRing> sRings =
+			new ConcurrentHashMap<String, InboundRing>();
+
+	private final FrameBuffer[] mSlots;
+	private final int[] mDataTypes;
+	private final long[] mTimestamps;
+	private final int mMask;
+
+	// next slot to read, only written by the consumer
+	private volatile long mHead;
+	// next slot to write, only written by the reading thread
+	private volatile long mTail;
+	private volatile long mOverflows;
+	private volatile Thread mWaiter;
+
+	private InboundRing(int capacity) {
+		int size = 1;
+		while (size < capacity) size <<= 1;
+
+		mSlots = new FrameBuffer[size];
+		for (int i = 0; i < size; i++) {
+			mSlots[i] = new FrameBuffer(64);
+		}
+		mDataTypes = new int[size];
+		mTimestamps = new long[size];
+		mMask = size - 1;
+	}
+
+	/**
+	 * The ring of an address outlives its connections, consumers keep it across reconnects.
+	 */
+	static InboundRing get(String address) {
+		address = address.toUpperCase();
+		InboundRing ring = sRings.get(address);
+		if (ring == null) {
+			ring = new InboundRing(ConnectionSettings.get(address).getInboundRingCapacity());
+			InboundRing existing = sRings.putIfAbsent(address, ring);
+			if (existing != null) ring = existing;
+		}
+		return ring;
+	}
+
+	/**
+	 * Called by the reading thread only.
+	 *
+	 * @return false if the ring is full and the message was discarded
+	 */
+	boolean offer(byte[] frame, int length, int dataType, long timestamp) {
+		final long tail = mTail;
+		if (tail - mHead > mMask) {
+			mOverflows++;
+			return false;
+		}
+
+		final int index = (int) tail & mMask;
+		mSlots[index].set(frame, 0, length);
+		mDataTypes[index] = dataType;
+		mTimestamps[index] = timestamp;
+		mTail = tail + 1;
+
+		Thread waiter = mWaiter;
+		if (waiter != null) {
+			// wake the consumer once, not for every message until it runs
+			mWaiter = null;
+			LockSupport.unpark(waiter);
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the oldest message into the given frame.
+	 *
+	 * @return false if the ring is empty
+	 */
+	public boolean poll(InboundFrame out) {
+		final long head = mHead;
+		if (head == mTail) return false;
+
+		final int index = (int) head & mMask;
+		FrameBuffer slot = mSlots[index];
+		out.mBuffer.set(slot.data, 0, slot.length);
+		out.mDataType = mDataTypes[index];
+		out.mTimestamp = mTimestamps[index];
+		mHead = head + 1;
+		return true;
+	}
+
+	/**
+	 * Like {@link #poll(InboundFrame)}, but waits for a message.
+	 *
+	 * @param timeoutMillis how long to wait, 0 waits forever
+	 * @return false if no message arrived in time
+	 */
+	public boolean take(InboundFrame out, long timeoutMillis) throws InterruptedException {
+		final long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		while (!poll(out)) {
+			mWaiter = Thread.currentThread();
+			try {
+				// a message published before we registered would not unpark us
+				if (mHead != mTail) continue;
+
+				if (timeoutMillis == 0) {
+					LockSupport.park(this);
+				} else {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) return false;
+					LockSupport.parkNanos(this, remaining);
+				}
+			} finally {
+				mWaiter = null;
+			}
+			if (Thread.interrupted()) throw new InterruptedException();
+		}
+		return true;
+	}
+
+	public int size() {
+		return (int) (mTail - mHead);
+	}
+
+	public int capacity() {
+		return mSlots.length;
+	}
+
+	/**
+	 * @return messages discarded because the ring was full
+	 */
+	public long getOverflowCount() {
+		return mOverflows;
+	}
+}
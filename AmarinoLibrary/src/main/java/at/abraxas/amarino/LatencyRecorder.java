@@ -0,0 +1,31 @@
+package at.abraxas.amarino;
+
+/**
+ * Keeps the most recent latency samples for {@link LatencyStats} snapshots.
+ */
+class LatencyRecorder {
+
+	private final long[] mSamples;
+	private int mCount;
+	private int mNext;
+	private long mTimeouts;
+
+	LatencyRecorder(int size) {
+		mSamples = new long[size];
+	}
+
+	synchronized void record(long micros) {
+		mSamples[mNext] = micros;
+		mNext = (mNext + 1) % mSamples.length;
+		if (mCount < mSamples.length) mCount++;
+	}
+
+	synchronized void recordTimeout() {
+		mTimeouts++;
+	}
+
+	synchronized LatencyStats snapshot() {
+		// the samples are in ring order, which does not matter since the snapshot sorts them
+		return new LatencyStats(mSamples, mCount, mTimeouts);
+	}
+}
@@ -0,0 +1,72 @@
+package at.abraxas.amarino;
+
+import java.util.Arrays;
+
+/**
+ * A snapshot of the most recent latency samples, times are in microseconds. See
+ * {@link AmarinoHelper#getLatencyStats(String)} for heartbeat round trips and
+ * {@link AmarinoHelper#getConnectLatencyStats()} for connects.
+ */
+public class LatencyStats {
+
+	private final long[] mSorted;
+	private final long mTimeouts;
+
+	LatencyStats(long[] samples, int count, long timeouts) {
+		mSorted = new long[count];
+		System.arraycopy(samples, 0, mSorted, 0, count);
+		Arrays.sort(mSorted);
+		mTimeouts = timeouts;
+	}
+
+	/**
+	 * @return the number of samples in this snapshot
+	 */
+	public int getCount() {
+		return mSorted.length;
+	}
+
+	public long getMinMicros() {
+		return (mSorted.length > 0) ? mSorted[0] : 0;
+	}
+
+	public long getMaxMicros() {
+		return (mSorted.length > 0) ? mSorted[mSorted.length - 1] : 0;
+	}
+
+	public long getMeanMicros() {
+		if (mSorted.length == 0) return 0;
+
+		long sum = 0;
+		for (long sample : mSorted) {
+			sum += sample;
+		}
+		return sum / mSorted.length;
+	}
+
+	/**
+	 * @param percentile between 0 and 100, e.g. 99 for the p99
+	 * @return the round-trip time not exceeded by the given share of samples, 0 without samples
+	 */
+	public long getPercentileMicros(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		if (mSorted.length == 0) return 0;
+
+		int index = (int) Math.ceil(percentile / 100 * mSorted.length) - 1;
+		return mSorted[Math.max(0, Math.min(index, mSorted.length - 1))];
+	}
+
+	/**
+	 * @return heartbeats Arduino did not answer in time, or connects which ran into their deadline
+	 */
+	public long getTimeouts() {
+		return mTimeouts;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", p50=" + getPercentileMicros(50) + "us, p90=" + getPercentileMicros(90)
+				+ "us, p99=" + getPercentileMicros(99) + "us, max=" + getMaxMicros() + "us, timeouts=" + mTimeouts;
+	}
+}
@@ -0,0 +1,173 @@
+package at.abraxas.amarino;
+
+import java.util.Map;
+
+/**
+ * One callback for the registered listeners, immutable so it can be delivered
+ * to several listeners on different threads.
+ */
+class ListenerEvent {
+
+	private static final int CONNECT_RESULT = 1;
+	private static final int DISCONNECTED = 2;
+	private static final int RECEIVED = 3;
+	private static final int RECEIVED_BATCH = 4;
+	private static final int CONNECTED_DEVICES = 5;
+	private static final int NEARBY_DEVICES = 6;
+	private static final int DEVICE_FOUND = 7;
+
+	private final int mKind;
+	private int mResult;
+	private String mFrom;
+	private String mData;
+	private AmarinoData mTypedData;
+	private AmarinoListener[] mSubscribers;
+	private String[] mBatchData;
+	private AmarinoData[] mBatchTypedData;
+	private long[] mBatchTimestamps;
+	private String[] mBatchFrom;
+	private String[] mDevices;
+	private Map<String, String> mNearbyDevices;
+	private String mName;
+
+	private ListenerEvent(int kind) {
+		mKind = kind;
+	}
+
+	static ListenerEvent connectResult(int result, String from) {
+		ListenerEvent e = new ListenerEvent(CONNECT_RESULT);
+		e.mResult = result;
+		e.mFrom = from;
+		return e;
+	}
+
+	static ListenerEvent disconnected(String from) {
+		ListenerEvent e = new ListenerEvent(DISCONNECTED);
+		e.mFrom = from;
+		return e;
+	}
+
+	/**
+	 * @param typedData not copied, must not be reused by the caller
+	 * @param subscribers the listeners subscribed to the message, see {@link Subscriptions#match}
+	 */
+	static ListenerEvent received(String data, AmarinoData typedData, String from, AmarinoListener[] subscribers) {
+		ListenerEvent e = new ListenerEvent(RECEIVED);
+		e.mData = data;
+		e.mTypedData = typedData;
+		e.mFrom = from;
+		e.mSubscribers = subscribers;
+		return e;
+	}
+
+	/**
+	 * @param typedData decoded values per message, null entries for untyped messages, may be null
+	 */
+	static ListenerEvent receivedBatch(String[] data, AmarinoData[] typedData, long[] timestamps, String[] from) {
+		ListenerEvent e = new ListenerEvent(RECEIVED_BATCH);
+		e.mBatchData = data;
+		e.mBatchTypedData = typedData;
+		e.mBatchTimestamps = timestamps;
+		e.mBatchFrom = from;
+		return e;
+	}
+
+	static ListenerEvent connectedDevices(String[] devices) {
+		ListenerEvent e = new ListenerEvent(CONNECTED_DEVICES);
+		e.mDevices = devices;
+		return e;
+	}
+
+	static ListenerEvent nearbyDevices(Map<String, String> devices) {
+		ListenerEvent e = new ListenerEvent(NEARBY_DEVICES);
+		e.mNearbyDevices = devices;
+		return e;
+	}
+
+	static ListenerEvent deviceFound(String name, String address) {
+		ListenerEvent e = new ListenerEvent(DEVICE_FOUND);
+		e.mName = name;
+		e.mFrom = address;
+		return e;
+	}
+
+	/**
+	 * @return true for received messages, the only events a full queue may drop
+	 */
+	boolean isData() {
+		return mKind == RECEIVED || mKind == RECEIVED_BATCH;
+	}
+
+	/**
+	 * @return false if the listener has subscriptions and this message matches none of them
+	 */
+	boolean isWantedBy(AmarinoListener l) {
+		if (mKind == DEVICE_FOUND) return l instanceof AmarinoScanListener;
+		if (mKind != RECEIVED) return true;
+		return Subscriptions.contains(mSubscribers, l) || !Subscriptions.isSubscribed(l);
+	}
+
+	void deliverTo(AmarinoListener l) {
+		switch (mKind) {
+			case CONNECT_RESULT:
+				l.onConnectResult(mResult, mFrom);
+				break;
+			case DISCONNECTED:
+				l.onDisconnectResult(mFrom);
+				break;
+			case RECEIVED:
+				l.onReceiveData(mData, mFrom);
+				if (mTypedData != null && l instanceof AmarinoDataListener) {
+					((AmarinoDataListener) l).onReceiveTypedData(mTypedData, mFrom);
+				}
+				break;
+			case RECEIVED_BATCH:
+				deliverBatchTo(l);
+				break;
+			case CONNECTED_DEVICES:
+				l.onReceiveConnectedDevices(mDevices);
+				break;
+			case NEARBY_DEVICES:
+				l.onReceiveNearbyDevices(mNearbyDevices);
+				break;
+			case DEVICE_FOUND:
+				((AmarinoScanListener) l).onDeviceFound(mName, mFrom);
+				break;
+		}
+	}
+
+	private void deliverBatchTo(AmarinoListener l) {
+		final String[] data = mBatchData;
+		final String[] from = mBatchFrom;
+		final AmarinoData[] typedData = mBatchTypedData;
+
+		if (Subscriptions.isSubscribed(l)) {
+			// subscribed listeners get their messages one by one
+			for (int i = 0; i < data.length; i++) {
+				if (!Subscriptions.contains(Subscriptions.match(from[i], data[i]), l)) continue;
+
+				l.onReceiveData(data[i], from[i]);
+				if (typedData != null && typedData[i] != null && l instanceof AmarinoDataListener) {
+					((AmarinoDataListener) l).onReceiveTypedData(typedData[i], from[i]);
+				}
+			}
+			return;
+		}
+
+		if (l instanceof AmarinoBatchListener) {
+			((AmarinoBatchListener) l).onReceiveDataBatch(data, mBatchTimestamps, from);
+		} else {
+			for (int i = 0; i < data.length; i++) {
+				l.onReceiveData(data[i], from[i]);
+			}
+		}
+
+		if (typedData != null && l instanceof AmarinoDataListener) {
+			for (int i = 0; i < typedData.length; i++) {
+				if (typedData[i] != null) {
+					((AmarinoDataListener) l).onReceiveTypedData(typedData[i], from[i]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package at.abraxas.amarino;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A registered {@link AmarinoListener} and the thread its callbacks run on, see {@link DeliveryMode}.
+ *
+ * <p>Events waiting for a listener are bounded in every mode but CALLER. MAIN and BACKGROUND
+ * listeners have a queue of their own which is drained on the main thread or the pool, the
+ * mailbox has its own thread. Their queue only drops received messages, other events count
+ * against the bound but are always queued.</p>
+ */
+class ListenerRegistration {
+
+	private static final String TAG = "ListenerRegistration";
+
+	static final int DEFAULT_CAPACITY = 256;
+
+	private static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	// shared by the listeners delivered in the background
+	private static final ThreadPoolExecutor sBackgroundPool = new ThreadPoolExecutor(
+			POOL_SIZE, POOL_SIZE, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				private int mCount;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "AmarinoDelivery-" + (++mCount));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	final AmarinoListener listener;
+	final int mode;
+
+	private final int mCapacity;
+	private final int mPolicy;
+
+	// main thread and background events of this listener, run one at a time to keep them in order
+	private final LinkedList<ListenerEvent> mQueue = new LinkedList<ListenerEvent>();
+	private boolean mDraining;
+
+	// mailbox mode only
+	private final ArrayBlockingQueue<ListenerEvent> mMailbox;
+	private final Thread mMailboxThread;
+	private volatile boolean mClosed;
+
+	// statistics, see ListenerStats
+	private final AtomicLong mDropped = new AtomicLong();
+	private long mDelivered;
+	private long mCallbackNanos;
+	private long mMaxCallbackNanos;
+
+	ListenerRegistration(AmarinoListener listener, int mode) {
+		this(listener, mode, DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * @param capacity how many events may wait for the listener, not used by {@link DeliveryMode#CALLER}
+	 * @param overflowPolicy used when they are full, BLOCK is only honoured by {@link DeliveryMode#MAILBOX}
+	 * and drops the newest event otherwise
+	 */
+	ListenerRegistration(AmarinoListener listener, int mode, int capacity, int overflowPolicy) {
+		this.listener = listener;
+		this.mode = mode;
+		mCapacity = capacity;
+		mPolicy = overflowPolicy;
+
+		if (mode == DeliveryMode.MAILBOX) {
+			mMailbox = new ArrayBlockingQueue<ListenerEvent>(capacity);
+			mMailboxThread = new Thread(mMailboxDrain, "AmarinoMailbox-" + listener.getClass().getSimpleName());
+			mMailboxThread.setDaemon(true);
+			mMailboxThread.start();
+		} else {
+			mMailbox = null;
+			mMailboxThread = null;
+		}
+	}
+
+	/**
+	 * Delivers the event to the listener on the thread its delivery mode asks for.
+	 */
+	void deliver(ListenerEvent event) {
+		if (mClosed) return;
+
+		switch (mode) {
+			case DeliveryMode.CALLER:
+				deliverSafely(event);
+				break;
+			case DeliveryMode.BACKGROUND:
+				enqueue(event, sBackgroundPool);
+				break;
+			case DeliveryMode.MAILBOX:
+				post(event);
+				break;
+			default:
+				if (MainThreadExecutor.isMainThread() && !isQueueBusy()) {
+					deliverTimed(event);
+				} else {
+					// events from other threads still waiting go first, the listener sees them in order
+					enqueue(event, MainThreadExecutor.INSTANCE);
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Stops delivering, events still waiting are discarded. A callback already running on
+	 * another thread is not waited for.
+	 */
+	void close() {
+		mClosed = true;
+		synchronized (mQueue) {
+			mQueue.clear();
+		}
+		if (mMailboxThread != null) {
+			mMailboxThread.interrupt();
+			// also lets a sender blocked on a full mailbox go on
+			mMailbox.clear();
+		}
+	}
+
+	ListenerStats getStats() {
+		synchronized (this) {
+			return new ListenerStats(mode, (mMailbox != null) ? mMailbox.size() : getQueueDepth(),
+					mDropped.get(), mDelivered, mCallbackNanos, mMaxCallbackNanos);
+		}
+	}
+
+	private void deliverTimed(ListenerEvent event) {
+		final long start = System.nanoTime();
+		try {
+			event.deliverTo(listener);
+		} finally {
+			final long nanos = System.nanoTime() - start;
+			synchronized (this) {
+				mDelivered++;
+				mCallbackNanos += nanos;
+				if (nanos > mMaxCallbackNanos) mMaxCallbackNanos = nanos;
+			}
+		}
+	}
+
+	/**
+	 * A failing listener must not take down the reading thread of a connection or the pool.
+	 */
+	private void deliverSafely(ListenerEvent event) {
+		try {
+			deliverTimed(event);
+		} catch (RuntimeException e) {
+			Log.e(TAG, "listener failed: " + e);
+		}
+	}
+
+	private void post(ListenerEvent event) {
+		if (mClosed) return;
+
+		switch (mPolicy) {
+			case OverflowPolicy.BLOCK:
+				try {
+					mMailbox.put(event);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					mDropped.incrementAndGet();
+				}
+				break;
+			case OverflowPolicy.DROP_OLDEST:
+				while (!mMailbox.offer(event)) {
+					if (mMailbox.poll() != null) mDropped.incrementAndGet();
+				}
+				break;
+			default:
+				if (!mMailbox.offer(event)) mDropped.incrementAndGet();
+				break;
+		}
+	}
+
+	private final Runnable mMailboxDrain = new Runnable() {
+		@Override
+		public void run() {
+			while (!mClosed) {
+				try {
+					deliverSafely(mMailbox.take());
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			mMailbox.clear();
+		}
+	};
+
+	private boolean isQueueBusy() {
+		synchronized (mQueue) {
+			return mDraining || !mQueue.isEmpty();
+		}
+	}
+
+	private int getQueueDepth() {
+		synchronized (mQueue) {
+			return mQueue.size();
+		}
+	}
+
+	private void enqueue(ListenerEvent event, Executor executor) {
+		synchronized (mQueue) {
+			if (mClosed) return;
+			// a listener which falls behind must not make received messages pile up without bound.
+			// Connection, pairing and device events are always kept, apps build their state on them
+			if (mQueue.size() >= mCapacity && event.isData()) {
+				mDropped.incrementAndGet();
+				if (mPolicy != OverflowPolicy.DROP_OLDEST || !removeOldestData()) return;
+			}
+			mQueue.add(event);
+			if (mDraining) return;
+			mDraining = true;
+		}
+		executor.execute(mDrain);
+	}
+
+	/**
+	 * @return false if only events which must not be dropped are queued
+	 */
+	private boolean removeOldestData() {
+		for (Iterator<ListenerEvent> i = mQueue.iterator(); i.hasNext();) {
+			if (i.next().isData()) {
+				i.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private final Runnable mDrain = new Runnable() {
+		@Override
+		public void run() {
+			boolean drained = false;
+			try {
+				while (true) {
+					ListenerEvent event;
+					synchronized (mQueue) {
+						event = mClosed ? null : mQueue.poll();
+						if (event == null) {
+							mDraining = false;
+							drained = true;
+							return;
+						}
+					}
+					if (mode == DeliveryMode.BACKGROUND) {
+						deliverSafely(event);
+					} else {
+						deliverTimed(event);
+					}
+				}
+			} finally {
+				// a main thread listener threw, the next event schedules the drain again
+				if (!drained) {
+					synchronized (mQueue) {
+						mDraining = false;
+					}
+				}
+			}
+		}
+	};
+}
@@ -0,0 +1,70 @@
+package at.abraxas.amarino;
+
+/**
+ * Snapshot of the counters of one registered listener, see {@link AmarinoHelper#getListenerStats(AmarinoListener)}.
+ */
+public class ListenerStats {
+
+	private final int mDeliveryMode;
+	private final int mQueuedEvents;
+	private final long mDroppedEvents;
+	private final long mDeliveredEvents;
+	private final long mCallbackNanos;
+	private final long mMaxCallbackNanos;
+
+	ListenerStats(int deliveryMode, int queuedEvents, long droppedEvents, long deliveredEvents,
+			long callbackNanos, long maxCallbackNanos) {
+		mDeliveryMode = deliveryMode;
+		mQueuedEvents = queuedEvents;
+		mDroppedEvents = droppedEvents;
+		mDeliveredEvents = deliveredEvents;
+		mCallbackNanos = callbackNanos;
+		mMaxCallbackNanos = maxCallbackNanos;
+	}
+
+	/**
+	 * @return one of the {@link DeliveryMode} constants
+	 */
+	public int getDeliveryMode() {
+		return mDeliveryMode;
+	}
+
+	/**
+	 * @return events waiting for the listener, in its mailbox or background queue
+	 */
+	public int getQueuedEvents() {
+		return mQueuedEvents;
+	}
+
+	/**
+	 * @return events discarded because the queue or mailbox of the listener was full
+	 */
+	public long getDroppedEvents() {
+		return mDroppedEvents;
+	}
+
+	public long getDeliveredEvents() {
+		return mDeliveredEvents;
+	}
+
+	/**
+	 * @return how long the callbacks of the listener took on average, in nanoseconds
+	 */
+	public long getMeanCallbackNanos() {
+		return (mDeliveredEvents > 0) ? mCallbackNanos / mDeliveredEvents : 0;
+	}
+
+	/**
+	 * @return the longest callback of the listener, in nanoseconds
+	 */
+	public long getMaxCallbackNanos() {
+		return mMaxCallbackNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "mode=" + mDeliveryMode + ", queued=" + mQueuedEvents + ", dropped=" + mDroppedEvents
+				+ ", delivered=" + mDeliveredEvents + ", mean callback=" + getMeanCallbackNanos() / 1000
+				+ "us, max callback=" + mMaxCallbackNanos / 1000 + "us";
+	}
+}
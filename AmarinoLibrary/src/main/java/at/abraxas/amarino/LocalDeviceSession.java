@@ -0,0 +1,116 @@
+package at.abraxas.amarino;
+
+import it.gerdavax.easybluetooth.LocalDevice;
+import it.gerdavax.easybluetooth.ReadyListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+
+/**
+ * The local Bluetooth adapter, initialised once and shared by all connects and scans of the service.
+ *
+ * <p>Every user acquires the session and releases it when done. The adapter is destroyed after the
+ * service closed the session and the last user released it, not after each operation.</p>
+ */
+class LocalDeviceSession {
+
+	interface Callback {
+		/**
+		 * Called once the adapter is ready, possibly on another thread.
+		 * The caller must {@link LocalDeviceSession#release()} afterwards.
+		 */
+		void ready(LocalDevice device);
+	}
+
+	private static final String TAG = "LocalDeviceSession";
+
+	private final Context mContext;
+
+	// guarded by this
+	private LocalDevice mDevice;
+	private boolean mReady;
+	private boolean mClosed;
+	private int mUsers;
+	private final List<Callback> mWaiting = new ArrayList<Callback>();
+
+	LocalDeviceSession(Context context) {
+		mContext = context;
+	}
+
+	void acquire(Callback callback) {
+		LocalDevice device;
+		boolean init = false;
+		synchronized (this) {
+			if (mClosed) throw new IllegalStateException("session is closed");
+			mUsers++;
+			if (!mReady) {
+				mWaiting.add(callback);
+				if (mDevice != null) return;
+				mDevice = LocalDevice.getInstance();
+				init = true;
+			}
+			device = mDevice;
+		}
+
+		if (!init) {
+			callback.ready(device);
+			return;
+		}
+
+		Logger.d(TAG, "initialising local Bluetooth device");
+		device.init(mContext, new ReadyListener() {
+			@Override
+			public void ready() {
+				onReady();
+			}
+		});
+	}
+
+	void release() {
+		synchronized (this) {
+			if (mUsers > 0) mUsers--;
+			if (mUsers > 0 || !mClosed) return;
+		}
+		destroy();
+	}
+
+	/**
+	 * The service does not need the adapter anymore, it is destroyed as soon as nobody uses it.
+	 */
+	void close() {
+		synchronized (this) {
+			mClosed = true;
+			if (mUsers > 0) return;
+		}
+		destroy();
+	}
+
+	private void onReady() {
+		List<Callback> waiting;
+		LocalDevice device;
+		synchronized (this) {
+			mReady = true;
+			device = mDevice;
+			waiting = new ArrayList<Callback>(mWaiting);
+			mWaiting.clear();
+		}
+		for (Callback callback : waiting) {
+			callback.ready(device);
+		}
+	}
+
+	private void destroy() {
+		LocalDevice device;
+		synchronized (this) {
+			// not initialised or already destroyed
+			if (!mReady) return;
+			device = mDevice;
+			mDevice = null;
+			mReady = false;
+		}
+		Logger.d(TAG, "destroying local Bluetooth device");
+		device.destroy();
+	}
+}
@@ -0,0 +1,47 @@
+package at.abraxas.amarino;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks on the main thread. Tasks posted close to each other run in one main thread turn,
+ * so a burst of received messages costs one Handler message instead of one per message.
+ */
+class MainThreadExecutor implements Executor {
+
+	static final MainThreadExecutor INSTANCE = new MainThreadExecutor();
+
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final ConcurrentLinkedQueue<Runnable> mPending = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+	private final Runnable mDrain = new Runnable() {
+		@Override
+		public void run() {
+			mScheduled.set(false);
+			Runnable task;
+			while ((task = mPending.poll()) != null) {
+				task.run();
+			}
+		}
+	};
+
+	private MainThreadExecutor() {
+	}
+
+	static boolean isMainThread() {
+		return Looper.myLooper() == Looper.getMainLooper();
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		mPending.offer(task);
+		if (mScheduled.compareAndSet(false, true)) {
+			mHandler.post(mDrain);
+		}
+	}
+}
@@ -28,6 +28,8 @@ import android.content.Intent;
  * If the data is given as an array, the resulting String will separate
  * the single values of the array with the {@link #DELIMITER}.</p>
  * 
+ * <p>{@link FrameEncoder} produces the same bytes without building intermediate Strings.</p>
+ * 
  * $Id: MessageBuilder.java 444 2010-06-10 13:11:59Z abraxas $
  */
 public class MessageBuilder {
@@ -40,8 +42,23 @@ public class MessageBuilder {
 	public static final char FLUSH_FLAG = 27;
 	public static final char DELIMITER = ';'; // used to separate data strings
 	
+	/**
+	 * Starts a binary frame, only sent to connections using
+	 * {@link ConnectionSettings#FRAME_FORMAT_BINARY}.
+	 * 
+	 * <p>Layout: BINARY_FLAG, flag, type, count (2 bytes), payload. The type is one of the
+	 * AmarinoIntent type extras and count is the number of values. Multi-byte values are little-endian
+	 * and sized like on Arduino: int as 4-byte long, short as 2-byte int, float as 4 bytes, double is
+	 * sent as float. Booleans are packed one bit per value, lowest bit first. There is no trailing
+	 * {@link #ACK_FLAG}, the count tells where the frame ends.</p>
+	 */
+	public static final char BINARY_FLAG = 20;
+	public static final int BINARY_HEADER_LENGTH = 5;
+	public static final int BINARY_MAX_COUNT = 0xFFFF;
+	
 	// alive msg is happens very often, we optimize it to be a constant
 	// instead of constructing it always from ground
+	// the heartbeat of the service puts a sequence number between both flags, see Heartbeat
 	public static final String ALIVE_MSG = ALIVE_FLAG + "" + ACK_FLAG;
 	
 	
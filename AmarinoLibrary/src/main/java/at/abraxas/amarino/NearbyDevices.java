@@ -0,0 +1,42 @@
+package at.abraxas.amarino;
+
+import android.os.SystemClock;
+
+/**
+ * The result of the last scan, answers scan requests without radio work while it is fresh.
+ */
+class NearbyDevices {
+
+	private static volatile long sTtlMillis = 10000;
+	private static volatile NearbyDevices sLast;
+
+	final String[] mNames;
+	final String[] mAddresses;
+	private final long mScannedAt = SystemClock.elapsedRealtime();
+
+	NearbyDevices(String[] names, String[] addresses) {
+		mNames = names;
+		mAddresses = addresses;
+	}
+
+	/**
+	 * @param ttlMillis how long a scan result is reused, 0 scans every time
+	 */
+	static void setTtl(long ttlMillis) {
+		if (ttlMillis < 0) throw new IllegalArgumentException("ttl must not be negative");
+		sTtlMillis = ttlMillis;
+	}
+
+	/**
+	 * @return the last result, or null if there is none or it is older than the ttl
+	 */
+	static NearbyDevices getCached() {
+		NearbyDevices last = sLast;
+		if (last == null || SystemClock.elapsedRealtime() - last.mScannedAt >= sTtlMillis) return null;
+		return last;
+	}
+
+	static void store(NearbyDevices devices) {
+		sLast = devices;
+	}
+}
@@ -0,0 +1,312 @@
+package at.abraxas.amarino;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of frames waiting to be written to one connection.
+ *
+ * <p>Slots are allocated once and reused, so in steady state queuing a frame only copies bytes.
+ * What happens when the queue is full is decided by an {@link OverflowPolicy}.</p>
+ *
+ * <p>Frames offered with a conflation key replace an unsent frame with the same key in place,
+ * so at most one frame per key is waiting and it always holds the latest value.</p>
+ *
+ * <p>The queue outlives a connection which is reconnected. Only the writer which claimed it last
+ * takes frames, an earlier writer which still runs gets nothing more and puts back what it could
+ * not write.</p>
+ */
+class OutboundQueue {
+
+	private static final int INITIAL_FRAME_CAPACITY = 32;
+
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mNotEmpty = mLock.newCondition();
+	private final Condition mNotFull = mLock.newCondition();
+
+	private final FrameBuffer[] mSlots;
+	private final boolean[] mFlushMarks;
+	private final int[] mConflationKeys;
+	private int mHead; // oldest frame
+	private int mCount;
+	private boolean mClosed;
+	// the writer frames are taken by
+	private Object mOwner;
+
+	// set by requestFlush, makes the current batch go out without waiting any longer
+	private boolean mFlushRequested;
+	private boolean mCollecting;
+
+	private long mDropped;
+	private long mRejected;
+	private long mSuperseded;
+	private long mAccepted;
+
+	OutboundQueue(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+		mSlots = new FrameBuffer[capacity];
+		mFlushMarks = new boolean[capacity];
+		mConflationKeys = new int[capacity];
+		for (int i = 0; i < capacity; i++) {
+			mSlots[i] = new FrameBuffer(INITIAL_FRAME_CAPACITY);
+		}
+	}
+
+	/**
+	 * Copies a frame into the queue.
+	 *
+	 * @param policy one of the {@link OverflowPolicy} constants, applied if the queue is full
+	 * @param conflationKey replaces an unsent frame with the same key if not negative
+	 * @return false if the frame was not queued
+	 */
+	boolean offer(byte[] data, int offset, int length, int policy, int conflationKey) {
+		mLock.lock();
+		try {
+			if (mClosed) return false;
+
+			if (conflationKey >= 0) {
+				for (int i = 0; i < mCount; i++) {
+					int index = (mHead + i) % mSlots.length;
+					if (mConflationKeys[index] == conflationKey) {
+						mSlots[index].set(data, offset, length);
+						mFlushMarks[index] = isFlushFrame(data, offset, length);
+						mSuperseded++;
+						mAccepted++;
+						return true;
+					}
+				}
+			}
+
+			if (mCount == mSlots.length) {
+				switch (policy) {
+					case OverflowPolicy.BLOCK:
+						while (mCount == mSlots.length && !mClosed) {
+							mNotFull.awaitUninterruptibly();
+						}
+						if (mClosed) return false;
+						break;
+					case OverflowPolicy.DROP_OLDEST:
+						mHead = (mHead + 1) % mSlots.length;
+						mCount--;
+						mDropped++;
+						break;
+					case OverflowPolicy.DROP_NEWEST:
+						mDropped++;
+						return false;
+					default:
+						mRejected++;
+						return false;
+				}
+			}
+
+			int tail = (mHead + mCount) % mSlots.length;
+			mSlots[tail].set(data, offset, length);
+			mFlushMarks[tail] = isFlushFrame(data, offset, length);
+			mConflationKeys[tail] = conflationKey;
+			mCount++;
+			mAccepted++;
+			mNotEmpty.signal();
+			return true;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the oldest frame, then keeps appending frames to the given buffer until
+	 * the window is over or the next frame would exceed the byte budget.
+	 *
+	 * <p>A frame starting with {@link MessageBuilder#FLUSH_FLAG} or a call to {@link #requestFlush()}
+	 * ends the batch right away.</p>
+	 *
+	 * @param windowMillis how long to wait for more frames after the first one, 0 to only take
+	 * frames which are already queued
+	 * @param maxBytes byte budget of the batch, a single larger frame is still taken
+	 * @param owner the writer taking the frames, see {@link #claim(Object)}
+	 * @return the number of frames taken, 0 if the queue was closed or claimed by another writer
+	 * @throws InterruptedException frames taken until then are in out
+	 */
+	int takeBatch(FrameBuffer out, long windowMillis, int maxBytes, Object owner) throws InterruptedException {
+		mLock.lock();
+		try {
+			while (mCount == 0 || mOwner != owner) {
+				if (mClosed || mOwner != owner) return 0;
+				mNotEmpty.await();
+			}
+
+			boolean flush = removeHead(out);
+			int frames = 1;
+
+			long nanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+			mCollecting = true;
+			while (!flush && !mClosed && mOwner == owner) {
+				if (mCount > 0) {
+					if (out.length + mSlots[mHead].length > maxBytes) break;
+					flush = removeHead(out);
+					frames++;
+				} else if (mFlushRequested || nanos <= 0) {
+					break;
+				} else {
+					nanos = mNotEmpty.awaitNanos(nanos);
+				}
+			}
+			mCollecting = false;
+			mFlushRequested = false;
+			return frames;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Makes the writer the only one taking frames from now on. An earlier writer waiting for
+	 * frames gives up.
+	 */
+	void claim(Object owner) {
+		mLock.lock();
+		try {
+			mOwner = owner;
+			mNotEmpty.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Puts a batch which could not be written back in front of the queue, as one frame.
+	 * If the queue is full meanwhile, its newest frame is dropped instead. Nothing is put back
+	 * into a closed queue.
+	 */
+	void putBack(FrameBuffer batch) {
+		mLock.lock();
+		try {
+			if (mClosed || batch.length == 0) return;
+
+			if (mCount == mSlots.length) {
+				mCount--;
+				mDropped++;
+			}
+			mHead = (mHead - 1 + mSlots.length) % mSlots.length;
+			mSlots[mHead].set(batch.data, 0, batch.length);
+			mFlushMarks[mHead] = false;
+			mConflationKeys[mHead] = -1;
+			mCount++;
+			mNotEmpty.signal();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Ends the batch currently being collected, queued frames are written without further delay.
+	 */
+	void requestFlush() {
+		mLock.lock();
+		try {
+			if (mCount > 0 || mCollecting) {
+				mFlushRequested = true;
+				mNotEmpty.signalAll();
+			}
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	private boolean removeHead(FrameBuffer out) {
+		FrameBuffer frame = mSlots[mHead];
+		boolean flush = mFlushMarks[mHead];
+		out.append(frame.data, 0, frame.length);
+		mHead = (mHead + 1) % mSlots.length;
+		mCount--;
+		mNotFull.signal();
+		return flush;
+	}
+
+	private static boolean isFlushFrame(byte[] data, int offset, int length) {
+		if (length == 0) return false;
+		if (data[offset] == MessageBuilder.FLUSH_FLAG) return true;
+		// binary frames carry their flag in the second byte
+		return data[offset] == MessageBuilder.BINARY_FLAG && length > 1
+				&& data[offset + 1] == MessageBuilder.FLUSH_FLAG;
+	}
+
+	/**
+	 * Rejects further frames and wakes up everybody waiting on the queue.
+	 * Frames already queued can still be taken.
+	 */
+	void close() {
+		mLock.lock();
+		try {
+			mClosed = true;
+			mNotEmpty.signalAll();
+			mNotFull.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	boolean isClosed() {
+		mLock.lock();
+		try {
+			return mClosed;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	int size() {
+		mLock.lock();
+		try {
+			return mCount;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	int capacity() {
+		return mSlots.length;
+	}
+
+	/**
+	 * @return how many frames were offered and queued, superseding ones included
+	 */
+	long getAcceptedCount() {
+		mLock.lock();
+		try {
+			return mAccepted;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	long getDroppedCount() {
+		mLock.lock();
+		try {
+			return mDropped;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * @return how many frames were replaced by a newer one before being written
+	 */
+	long getSupersededCount() {
+		mLock.lock();
+		try {
+			return mSuperseded;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	long getRejectedCount() {
+		mLock.lock();
+		try {
+			return mRejected;
+		} finally {
+			mLock.unlock();
+		}
+	}
+}
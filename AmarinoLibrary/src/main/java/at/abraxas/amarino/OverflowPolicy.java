@@ -0,0 +1,27 @@
+package at.abraxas.amarino;
+
+/**
+ * What a bounded queue does when something is added while it is full.
+ */
+public interface OverflowPolicy {
+
+	/**
+	 * The caller waits until there is room again or the queue is closed.
+	 */
+	public static final int BLOCK = 1;
+
+	/**
+	 * The oldest entry is discarded to make room, the freshest data always gets through.
+	 */
+	public static final int DROP_OLDEST = 2;
+
+	/**
+	 * The new entry is discarded and counted as dropped.
+	 */
+	public static final int DROP_NEWEST = 3;
+
+	/**
+	 * The new entry is rejected and the caller is told so.
+	 */
+	public static final int FAIL = 4;
+}
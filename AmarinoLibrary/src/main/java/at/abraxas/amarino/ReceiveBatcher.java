@@ -0,0 +1,190 @@
+package at.abraxas.amarino;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Process;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects messages received from all connections and delivers them as one batch,
+ * instead of one broadcast and one main thread callback per message.
+ *
+ * <p>A batch is delivered when the window since its first message is over or when it holds
+ * the maximum number of messages, whatever comes first.</p>
+ */
+class ReceiveBatcher {
+
+	private static final String TAG = "ReceiveBatcher";
+
+	// configured through AmarinoHelper, batching is off while the window is 0
+	private static volatile long sWindowMillis = 0;
+	private static volatile int sMaxMessages = 64;
+
+	private final Context mContext;
+	private final ScheduledExecutorService mTimer = new ScheduledThreadPoolExecutor(1);
+
+	private final Object mLock = new Object();
+	private Batch mBatch;
+	private ScheduledFuture<?> mPendingFlush;
+	// the timer is gone, messages are delivered one by one
+	private boolean mShutdown;
+
+	private final Runnable mFlush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	ReceiveBatcher(Context context) {
+		mContext = context;
+	}
+
+	static void configure(long windowMillis, int maxMessages) {
+		if (windowMillis < 0 || maxMessages < 1)
+			throw new IllegalArgumentException("invalid batching window or size");
+		sMaxMessages = maxMessages;
+		sWindowMillis = windowMillis;
+	}
+
+	static boolean isEnabled() {
+		return sWindowMillis > 0;
+	}
+
+	/**
+	 * @param typedData decoded values or null, copied since the caller reuses it
+	 * @param broadcast whether the message may be broadcast to other apps
+	 */
+	void add(String from, String data, AmarinoData typedData, boolean broadcast) {
+		final AmarinoData copy = (typedData != null) ? typedData.copy() : null;
+		final long now = System.currentTimeMillis();
+
+		Batch full = null;
+		synchronized (mLock) {
+			if (mShutdown) {
+				// a reading thread still parsing while the service stops, no timer to schedule on
+				full = new Batch(1);
+				full.add(from, data, copy, now, broadcast);
+			} else {
+				if (mBatch == null) {
+					mBatch = new Batch(sMaxMessages);
+					mPendingFlush = mTimer.schedule(mFlush, sWindowMillis, TimeUnit.MILLISECONDS);
+				}
+				mBatch.add(from, data, copy, now, broadcast);
+				if (mBatch.count == mBatch.data.length) {
+					full = mBatch;
+					mBatch = null;
+					// the window of the next batch starts with its first message
+					mPendingFlush.cancel(false);
+				}
+			}
+		}
+		if (full != null) deliver(full);
+	}
+
+	/**
+	 * Delivers the current batch right away.
+	 */
+	void flush() {
+		Batch batch;
+		synchronized (mLock) {
+			batch = mBatch;
+			mBatch = null;
+			if (mPendingFlush != null) mPendingFlush.cancel(false);
+		}
+		if (batch != null) deliver(batch);
+	}
+
+	void shutdown() {
+		synchronized (mLock) {
+			mShutdown = true;
+		}
+		mTimer.shutdownNow();
+		flush();
+	}
+
+	private void deliver(Batch batch) {
+		batch.trim();
+		Logger.d(TAG, "delivering " + batch.count + " messages");
+
+		boolean dispatched = ReceiveDispatcher.dispatchBatch(batch.from, batch.data, batch.typedData, batch.timestamps);
+
+		int broadcasts = 0;
+		for (int i = 0; i < batch.count; i++) {
+			if (batch.broadcast[i]) broadcasts++;
+		}
+		if (broadcasts == 0) return;
+
+		String[] data = batch.data;
+		long[] timestamps = batch.timestamps;
+		String[] from = batch.from;
+		if (broadcasts < batch.count) {
+			data = new String[broadcasts];
+			timestamps = new long[broadcasts];
+			from = new String[broadcasts];
+			for (int i = 0, j = 0; i < batch.count; i++) {
+				if (!batch.broadcast[i]) continue;
+				data[j] = batch.data[i];
+				timestamps[j] = batch.timestamps[i];
+				from[j++] = batch.from[i];
+			}
+		}
+
+		Intent intent = new Intent(AmarinoIntent.ACTION_RECEIVED);
+		intent.putExtra(AmarinoIntent.EXTRA_DATA_BATCH, data);
+		intent.putExtra(AmarinoIntent.EXTRA_TIMESTAMPS, timestamps);
+		intent.putExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESSES, from);
+		if (dispatched) intent.putExtra(AmarinoIntent.EXTRA_DISPATCHED_PID, Process.myPid());
+		mContext.sendBroadcast(intent);
+	}
+
+	private static class Batch {
+		int count;
+		String[] from;
+		String[] data;
+		AmarinoData[] typedData;
+		long[] timestamps;
+		boolean[] broadcast;
+
+		Batch(int capacity) {
+			from = new String[capacity];
+			data = new String[capacity];
+			typedData = new AmarinoData[capacity];
+			timestamps = new long[capacity];
+			broadcast = new boolean[capacity];
+		}
+
+		void add(String from, String data, AmarinoData typedData, long timestamp, boolean broadcast) {
+			this.from[count] = from;
+			this.data[count] = data;
+			this.typedData[count] = typedData;
+			this.timestamps[count] = timestamp;
+			this.broadcast[count] = broadcast;
+			count++;
+		}
+
+		/**
+		 * Shrinks the arrays to the number of messages, batches cut by the window are not full.
+		 */
+		void trim() {
+			if (count == data.length) return;
+
+			String[] newFrom = new String[count];
+			String[] newData = new String[count];
+			AmarinoData[] newTypedData = new AmarinoData[count];
+			long[] newTimestamps = new long[count];
+			System.arraycopy(from, 0, newFrom, 0, count);
+			System.arraycopy(data, 0, newData, 0, count);
+			System.arraycopy(typedData, 0, newTypedData, 0, count);
+			System.arraycopy(timestamps, 0, newTimestamps, 0, count);
+			from = newFrom;
+			data = newData;
+			typedData = newTypedData;
+			timestamps = newTimestamps;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package at.abraxas.amarino;
+
+/**
+ * Hands messages received by the service directly to the listeners registered in the same
+ * process, without a broadcast and its Binder round trip.
+ *
+ * <p>Called by the reading threads, every listener gets the messages on the thread
+ * its {@link DeliveryMode} asks for.</p>
+ */
+class ReceiveDispatcher {
+
+	private ReceiveDispatcher() {
+	}
+
+	/**
+	 * @param typedData decoded values or null, copied since the caller reuses it
+	 * @param subscribers the listeners subscribed to the message, or null
+	 * @return false if no listener is registered in this process, nothing was dispatched then
+	 */
+	static boolean dispatch(String from, String data, AmarinoData typedData, AmarinoListener[] subscribers) {
+		if (!AmarinoHelper.hasListeners()) return false;
+		// every listener has subscriptions and none of them matches
+		if (subscribers == null && !AmarinoHelper.hasUnfilteredListeners()) return true;
+
+		AmarinoHelper.deliver(ListenerEvent.received(data,
+				(typedData != null) ? typedData.copy() : null, from, subscribers));
+		return true;
+	}
+
+	/**
+	 * Dispatches a batch of messages, see {@link ReceiveBatcher}. The arrays are handed over.
+	 *
+	 * @return false if no listener is registered in this process, nothing was dispatched then
+	 */
+	static boolean dispatchBatch(String[] from, String[] data, AmarinoData[] typedData, long[] timestamps) {
+		if (!AmarinoHelper.hasListeners()) return false;
+
+		AmarinoHelper.deliver(ListenerEvent.receivedBatch(data, typedData, timestamps, from));
+		return true;
+	}
+}
@@ -0,0 +1,49 @@
+package at.abraxas.amarino;
+
+/**
+ * A message received from Arduino, emitted by {@link AmarinoHelper#receivedData(String)}.
+ */
+public class ReceivedMessage {
+
+	private final String mFrom;
+	private final String mData;
+	private final AmarinoData mTypedData;
+	private final long mTimestamp;
+
+	ReceivedMessage(String from, String data, AmarinoData typedData, long timestamp) {
+		mFrom = from;
+		mData = data;
+		mTypedData = typedData;
+		mTimestamp = timestamp;
+	}
+
+	/**
+	 * @return the address of the device which sent the message
+	 */
+	public String getFrom() {
+		return mFrom;
+	}
+
+	public String getData() {
+		return mData;
+	}
+
+	/**
+	 * @return the decoded values of a typed message, or null, see {@link AmarinoData}
+	 */
+	public AmarinoData getTypedData() {
+		return mTypedData;
+	}
+
+	/**
+	 * @return when the message was received, in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return mTimestamp;
+	}
+
+	@Override
+	public String toString() {
+		return mFrom + ": " + mData;
+	}
+}
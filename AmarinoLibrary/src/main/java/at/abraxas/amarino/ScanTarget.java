@@ -0,0 +1,60 @@
+package at.abraxas.amarino;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * The devices a scan-and-connect is looking for, by address and/or by a pattern the whole
+ * friendly name has to match. Each address matches once, the pattern matches its first device.
+ */
+class ScanTarget {
+
+	private final Set<String> mAddresses = new HashSet<String>();
+	private final Pattern mNamePattern;
+	// guarded by this
+	private boolean mNameMatched;
+
+	/**
+	 * @param addresses may be null
+	 * @param namePattern a regular expression, may be null
+	 */
+	ScanTarget(String[] addresses, String namePattern) {
+		if (addresses != null) {
+			for (String address : addresses) {
+				if (Utils.isCorrectAddressFormat(address)) mAddresses.add(address.toUpperCase());
+			}
+		}
+		mNamePattern = (namePattern != null) ? Pattern.compile(namePattern) : null;
+	}
+
+	boolean isEmpty() {
+		return mAddresses.isEmpty() && mNamePattern == null;
+	}
+
+	/**
+	 * @param address upper case
+	 * @return true if the device is wanted, it does not match again
+	 */
+	synchronized boolean match(String name, String address) {
+		if (mAddresses.remove(address)) return true;
+		if (mNamePattern == null || mNameMatched || name == null) return false;
+
+		mNameMatched = mNamePattern.matcher(name).matches();
+		return mNameMatched;
+	}
+
+	/**
+	 * @return whether every wanted device was found
+	 */
+	synchronized boolean isSatisfied() {
+		return mAddresses.isEmpty() && (mNamePattern == null || mNameMatched);
+	}
+
+	/**
+	 * @return the addresses which were not found
+	 */
+	synchronized String[] getMissing() {
+		return mAddresses.toArray(new String[mAddresses.size()]);
+	}
+}
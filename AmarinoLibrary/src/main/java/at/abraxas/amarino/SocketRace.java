@@ -0,0 +1,151 @@
+package at.abraxas.amarino;
+
+import it.gerdavax.easybluetooth.BtSocket;
+import it.gerdavax.easybluetooth.RemoteDevice;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+
+import android.os.SystemClock;
+
+/**
+ * Opens a socket via SDP and directly on a channel at the same time, the first one which opens is
+ * kept and the other one is closed when it finally opens. Without a uuid only the channel is tried,
+ * with the same deadline and cancel.
+ *
+ * <p>The Bluetooth library cannot abort a running open, a timed out or cancelled race returns at once
+ * but its attempts finish in the background and close what they get.</p>
+ */
+class SocketRace {
+
+	private static final String TAG = "SocketRace";
+
+	private static final ExecutorService sExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+		private int mCount;
+
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "AmarinoOpen-" + (++mCount));
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final RemoteDevice mDevice;
+	private final UUID mUuid;
+	private final int mChannel;
+
+	// guarded by this
+	private BtSocket mWinner;
+	private int mWinnerChannel;
+	private int mFailures;
+	private Exception mFailure;
+	private boolean mDone;
+	private boolean mCancelled;
+
+	/**
+	 * @param uuid looked up via SDP, null to only try the channel
+	 * @param channel the RFCOMM channel tried next to the SDP lookup of the uuid
+	 */
+	SocketRace(RemoteDevice device, UUID uuid, int channel) {
+		mDevice = device;
+		mUuid = uuid;
+		mChannel = channel;
+	}
+
+	/**
+	 * @param timeoutMillis 0 waits as long as the attempts take
+	 * @throws TimeoutException if no socket opened in time
+	 * @throws CancellationException if {@link #cancel()} was called
+	 * @throws Exception the failure of the SDP attempt if all attempts failed
+	 */
+	BtSocket open(long timeoutMillis) throws Exception {
+		final int attempts = (mUuid != null) ? 2 : 1;
+		if (mUuid != null) sExecutor.execute(new Attempt(ChannelCache.SDP));
+		sExecutor.execute(new Attempt(mChannel));
+
+		final long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+		synchronized (this) {
+			try {
+				while (mWinner == null && mFailures < attempts && !mCancelled) {
+					if (timeoutMillis > 0) {
+						long left = deadline - SystemClock.uptimeMillis();
+						if (left <= 0) break;
+						wait(left);
+					} else {
+						wait();
+					}
+				}
+			} finally {
+				mDone = true;
+			}
+
+			if (mWinner != null) return mWinner;
+			if (mCancelled) throw new CancellationException("connect cancelled");
+			if (mFailures == attempts) throw mFailure;
+			throw new TimeoutException("no socket within " + timeoutMillis + " ms");
+		}
+	}
+
+	/**
+	 * Makes {@link #open(long)} give up, also if it was not called yet.
+	 */
+	synchronized void cancel() {
+		mCancelled = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return {@link ChannelCache#SDP} or the channel of the socket which opened
+	 */
+	synchronized int getChannel() {
+		return mWinnerChannel;
+	}
+
+	private class Attempt implements Runnable {
+		private final int mAttemptChannel;
+
+		Attempt(int channel) {
+			mAttemptChannel = channel;
+		}
+
+		@Override
+		public void run() {
+			BtSocket socket = null;
+			Exception failure = null;
+			try {
+				socket = (mAttemptChannel == ChannelCache.SDP)
+						? mDevice.openSocket(mUuid) : mDevice.openSocket(mAttemptChannel);
+			} catch (Exception e) {
+				failure = e;
+			}
+
+			boolean won = false;
+			synchronized (SocketRace.this) {
+				if (socket == null) {
+					mFailures++;
+					// the SDP failure tells more than the one of a guessed channel
+					if (mFailure == null || mAttemptChannel == ChannelCache.SDP) mFailure = failure;
+				} else if (mWinner == null && !mDone && !mCancelled) {
+					mWinner = socket;
+					mWinnerChannel = mAttemptChannel;
+					won = true;
+				}
+				SocketRace.this.notifyAll();
+			}
+
+			if (socket != null && !won) {
+				Logger.d(TAG, "closing socket of " + ((mAttemptChannel == ChannelCache.SDP) ? "SDP" : "channel " + mAttemptChannel));
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package at.abraxas.amarino;
+
+import android.util.Log;
+
+import java.util.LinkedList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One subscriber of an {@link AmarinoFlow.Publisher}, with a bounded buffer for the items
+ * it has not requested yet.
+ *
+ * <p>With {@link OverflowPolicy#BLOCK} a full buffer makes the producer wait, which is how a slow
+ * subscriber of received data throttles the reading thread of its connection. The wait is bounded,
+ * a subscriber which stops requesting loses its oldest items instead of parking the producer for
+ * good, and it ends when the producer is interrupted.</p>
+ *
+ * <p>A subscriber throwing from onNext or onSubscribe is cancelled and gets onError, the
+ * exception does not reach the producer.</p>
+ */
+class StreamSubscription<T> implements AmarinoFlow.Subscription {
+
+	private static final String TAG = "StreamSubscription";
+
+	private final AmarinoFlow.Subscriber<? super T> mSubscriber;
+	private final CopyOnWriteArrayList<StreamSubscription<T>> mOwner;
+	private final int mCapacity;
+	private final int mPolicy;
+	private final long mMaxBlockNanos;
+	// the device whose items are wanted, null for all
+	final String address;
+
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mNotFull = mLock.newCondition();
+	private final LinkedList<T> mBuffer = new LinkedList<T>();
+
+	private final AtomicLong mDemand = new AtomicLong();
+	private final AtomicInteger mWip = new AtomicInteger();
+	private volatile boolean mCancelled;
+	private final AtomicBoolean mFailed = new AtomicBoolean();
+
+	StreamSubscription(AmarinoFlow.Subscriber<? super T> subscriber, CopyOnWriteArrayList<StreamSubscription<T>> owner,
+			String address, int capacity, int policy, long maxBlockMillis) {
+		mSubscriber = subscriber;
+		mOwner = owner;
+		this.address = address;
+		mCapacity = capacity;
+		mPolicy = policy;
+		mMaxBlockNanos = TimeUnit.MILLISECONDS.toNanos(maxBlockMillis);
+	}
+
+	void start() {
+		mOwner.add(this);
+		try {
+			mSubscriber.onSubscribe(this);
+		} catch (RuntimeException e) {
+			cancel();
+			fail(e);
+		}
+	}
+
+	boolean wants(String from) {
+		return address == null || address.equalsIgnoreCase(from);
+	}
+
+	/**
+	 * Buffers the item until it is requested.
+	 */
+	void offer(T item) {
+		if (mCancelled) return;
+
+		mLock.lock();
+		try {
+			long left = mMaxBlockNanos;
+			while (mBuffer.size() >= mCapacity) {
+				if (mPolicy == OverflowPolicy.DROP_OLDEST || left <= 0) {
+					mBuffer.removeFirst();
+				} else {
+					left = mNotFull.awaitNanos(left);
+					if (mCancelled) return;
+				}
+			}
+			mBuffer.addLast(item);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} finally {
+			mLock.unlock();
+		}
+		drain();
+	}
+
+	@Override
+	public void request(long n) {
+		if (mCancelled) return;
+		if (n <= 0) {
+			cancel();
+			fail(new IllegalArgumentException("non-positive request " + n));
+			return;
+		}
+
+		long current;
+		long next;
+		do {
+			current = mDemand.get();
+			next = current + n;
+			if (next < 0) next = Long.MAX_VALUE;
+		} while (!mDemand.compareAndSet(current, next));
+		drain();
+	}
+
+	@Override
+	public void cancel() {
+		mCancelled = true;
+		mOwner.remove(this);
+
+		mLock.lock();
+		try {
+			mBuffer.clear();
+			mNotFull.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Signals onError once, the subscription must be cancelled already.
+	 */
+	private void fail(Throwable t) {
+		if (!mFailed.compareAndSet(false, true)) return;
+		try {
+			mSubscriber.onError(t);
+		} catch (RuntimeException e) {
+			Log.e(TAG, "subscriber failed in onError: " + e);
+		}
+	}
+
+	/**
+	 * Emits buffered items while there is demand. Whichever thread gets here first does the work
+	 * for all others, so signals never overlap.
+	 */
+	private void drain() {
+		if (mWip.getAndIncrement() != 0) return;
+
+		int missed = 1;
+		do {
+			while (!mCancelled && mDemand.get() > 0) {
+				T item;
+				mLock.lock();
+				try {
+					item = mBuffer.poll();
+					if (item != null) mNotFull.signal();
+				} finally {
+					mLock.unlock();
+				}
+				if (item == null) break;
+
+				if (mDemand.get() != Long.MAX_VALUE) mDemand.decrementAndGet();
+				try {
+					mSubscriber.onNext(item);
+				} catch (RuntimeException e) {
+					// the subscriber is broken, the producer and the other subscribers go on
+					cancel();
+					fail(e);
+					break;
+				}
+			}
+			missed = mWip.addAndGet(-missed);
+		} while (missed != 0);
+	}
+}
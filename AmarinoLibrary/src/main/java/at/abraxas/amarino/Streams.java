@@ -0,0 +1,103 @@
+package at.abraxas.amarino;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Subscribers of the streams of {@link AmarinoHelper}, fed by the service of the same process.
+ */
+class Streams {
+
+	static final int DATA_BUFFER_SIZE = 64;
+	// how long a reading thread waits for a subscriber with a full buffer before dropping its oldest message
+	static final long DATA_MAX_BLOCK_MILLIS = 1000;
+	private static final int EVENT_BUFFER_SIZE = 16;
+
+	private static final CopyOnWriteArrayList<StreamSubscription<ReceivedMessage>> sData =
+			new CopyOnWriteArrayList<StreamSubscription<ReceivedMessage>>();
+	private static final CopyOnWriteArrayList<StreamSubscription<ConnectionEvent>> sConnections =
+			new CopyOnWriteArrayList<StreamSubscription<ConnectionEvent>>();
+	private static final CopyOnWriteArrayList<StreamSubscription<Map<String, String>>> sNearbyDevices =
+			new CopyOnWriteArrayList<StreamSubscription<Map<String, String>>>();
+
+	private Streams() {
+	}
+
+	static AmarinoFlow.Publisher<ReceivedMessage> receivedData(final String address, final int bufferSize) {
+		return new AmarinoFlow.Publisher<ReceivedMessage>() {
+			@Override
+			public void subscribe(AmarinoFlow.Subscriber<? super ReceivedMessage> subscriber) {
+				new StreamSubscription<ReceivedMessage>(subscriber, sData, address, bufferSize,
+						OverflowPolicy.BLOCK, DATA_MAX_BLOCK_MILLIS).start();
+			}
+		};
+	}
+
+	static AmarinoFlow.Publisher<ConnectionEvent> connectionEvents() {
+		return new AmarinoFlow.Publisher<ConnectionEvent>() {
+			@Override
+			public void subscribe(AmarinoFlow.Subscriber<? super ConnectionEvent> subscriber) {
+				new StreamSubscription<ConnectionEvent>(subscriber, sConnections, null, EVENT_BUFFER_SIZE,
+						OverflowPolicy.DROP_OLDEST, 0).start();
+			}
+		};
+	}
+
+	static AmarinoFlow.Publisher<Map<String, String>> nearbyDevices() {
+		return new AmarinoFlow.Publisher<Map<String, String>>() {
+			@Override
+			public void subscribe(AmarinoFlow.Subscriber<? super Map<String, String>> subscriber) {
+				new StreamSubscription<Map<String, String>>(subscriber, sNearbyDevices, null, EVENT_BUFFER_SIZE,
+						OverflowPolicy.DROP_OLDEST, 0).start();
+			}
+		};
+	}
+
+	static boolean hasDataSubscribers() {
+		return !sData.isEmpty();
+	}
+
+	/**
+	 * Called by the reading thread of a connection, waits while a subscriber's buffer is full,
+	 * at most {@link #DATA_MAX_BLOCK_MILLIS} or until the thread is interrupted.
+	 *
+	 * @param typedData decoded values or null, copied since the caller reuses it
+	 */
+	static void publishReceived(String from, String data, AmarinoData typedData) {
+		ReceivedMessage message = null;
+		for (StreamSubscription<ReceivedMessage> s : sData) {
+			if (!s.wants(from)) continue;
+
+			if (message == null) {
+				message = new ReceivedMessage(from, data, (typedData != null) ? typedData.copy() : null,
+						System.currentTimeMillis());
+			}
+			s.offer(message);
+		}
+	}
+
+	static void publishConnectionEvent(String address, int state) {
+		if (sConnections.isEmpty()) return;
+
+		ConnectionEvent event = new ConnectionEvent(address, state);
+		for (StreamSubscription<ConnectionEvent> s : sConnections) {
+			s.offer(event);
+		}
+	}
+
+	/**
+	 * Emits the devices as name to address map, like {@link AmarinoListener#onReceiveNearbyDevices(Map)}.
+	 */
+	static void publishNearbyDevices(String[] names, String[] addresses) {
+		if (sNearbyDevices.isEmpty()) return;
+
+		Map<String, String> devices = new HashMap<String, String>();
+		for (int i = 0; i < names.length; i++) {
+			devices.put(names[i], addresses[i]);
+		}
+		for (StreamSubscription<Map<String, String>> s : sNearbyDevices) {
+			s.offer(devices);
+		}
+	}
+}
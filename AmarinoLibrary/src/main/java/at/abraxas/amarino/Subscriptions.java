@@ -0,0 +1,110 @@
+package at.abraxas.amarino;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Which received messages a listener wants, see {@link AmarinoHelper#subscribe(AmarinoListener, String, String)}.
+ *
+ * <p>Matching runs on the reading thread of a connection against the raw message,
+ * so listeners are only called for messages they subscribed to.</p>
+ */
+class Subscriptions {
+
+	private static final CopyOnWriteArrayList<Subscription> sSubscriptions =
+			new CopyOnWriteArrayList<Subscription>();
+
+	private Subscriptions() {
+	}
+
+	/**
+	 * @param address the device, null for all devices
+	 * @param prefix the start of the messages, empty for all messages
+	 */
+	static void add(AmarinoListener listener, String address, String prefix) {
+		sSubscriptions.add(new Subscription(listener, address, prefix));
+	}
+
+	static void remove(AmarinoListener listener) {
+		for (Subscription s : sSubscriptions) {
+			if (s.listener == listener) sSubscriptions.remove(s);
+		}
+	}
+
+	static boolean isSubscribed(AmarinoListener listener) {
+		for (Subscription s : sSubscriptions) {
+			if (s.listener == listener) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the listeners subscribed to the message, or null if there are none
+	 */
+	static AmarinoListener[] match(String address, byte[] frame, int length) {
+		AmarinoListener[] matches = null;
+		for (Subscription s : sSubscriptions) {
+			if (s.matchesAddress(address) && s.matches(frame, length)) {
+				matches = add(matches, s.listener);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Like {@link #match(String, byte[], int)}, for messages which went through a broadcast.
+	 */
+	static AmarinoListener[] match(String address, String data) {
+		AmarinoListener[] matches = null;
+		for (Subscription s : sSubscriptions) {
+			if (s.matchesAddress(address) && data != null && data.startsWith(s.prefix)) {
+				matches = add(matches, s.listener);
+			}
+		}
+		return matches;
+	}
+
+	static boolean contains(AmarinoListener[] listeners, AmarinoListener listener) {
+		if (listeners == null) return false;
+		for (AmarinoListener l : listeners) {
+			if (l == listener) return true;
+		}
+		return false;
+	}
+
+	private static AmarinoListener[] add(AmarinoListener[] listeners, AmarinoListener listener) {
+		if (listeners == null) return new AmarinoListener[] { listener };
+		if (contains(listeners, listener)) return listeners;
+
+		AmarinoListener[] grown = new AmarinoListener[listeners.length + 1];
+		System.arraycopy(listeners, 0, grown, 0, listeners.length);
+		grown[listeners.length] = listener;
+		return grown;
+	}
+
+	private static class Subscription {
+		final AmarinoListener listener;
+		final String address;
+		final String prefix;
+		// the service decodes messages with the default charset, so prefixes are encoded the same way
+		final byte[] prefixBytes;
+
+		Subscription(AmarinoListener listener, String address, String prefix) {
+			this.listener = listener;
+			this.address = address;
+			this.prefix = (prefix != null) ? prefix : "";
+			this.prefixBytes = this.prefix.getBytes();
+		}
+
+		boolean matchesAddress(String from) {
+			return address == null || address.equalsIgnoreCase(from);
+		}
+
+		boolean matches(byte[] frame, int length) {
+			if (length < prefixBytes.length) return false;
+			for (int i = 0; i < prefixBytes.length; i++) {
+				if (frame[i] != prefixBytes[i]) return false;
+			}
+			return true;
+		}
+	}
+}
@@ -17,4 +17,18 @@ public class Utils {
 		// TODO use regular expression to check format needs more specific regex
 		return Pattern.matches("[[A-F][0-9][:]]+", address.toUpperCase());
 	}
+
+	/**
+	 * Decodes bytes of a message the way they are put on the wire, one char per byte (ISO-8859-1).
+	 *
+	 * @return the decoded String, empty if length is not positive
+	 */
+	public static String toLatin1String(byte[] data, int offset, int length) {
+		if (data == null || length <= 0) return "";
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) (data[offset + i] & 0xFF);
+		}
+		return new String(chars);
+	}
 }
@@ -0,0 +1,98 @@
+package at.abraxas.amarino;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds small frames through a {@link ConnectionWriter} into an in-memory stand-in for the
+ * socket, which charges a fixed cost per write() and a cost per byte like a Bluetooth link.
+ * Prints how many writes were needed and the throughput, one frame per write against coalescing.
+ *
+ * <p>Run as a plain Java program: {@code java at.abraxas.amarino.CoalescingBenchmark [frames]},
+ * with android.jar on the classpath.</p>
+ */
+public class CoalescingBenchmark {
+
+	// what a write to an RFCOMM socket roughly costs, independent of its size
+	private static final long WRITE_OVERHEAD_NANOS = TimeUnit.MICROSECONDS.toNanos(300);
+	private static final long BYTE_NANOS = TimeUnit.MICROSECONDS.toNanos(2);
+
+	private static final String ADDRESS = "00:00:00:00:00:00";
+
+	/**
+	 * Counts the writes and busy-waits for as long as the link would take.
+	 */
+	static class CountingOutputStream extends OutputStream {
+		volatile long writes;
+		volatile long bytes;
+
+		@Override
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			final long until = System.nanoTime() + WRITE_OVERHEAD_NANOS + len * BYTE_NANOS;
+			while (System.nanoTime() < until) {
+				// the link is busy
+			}
+			writes++;
+			bytes += len;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int frames = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+
+		// warm up the JIT, results are discarded
+		run("warmup", frames / 4, 0, 512);
+
+		System.out.println("frames  mode                        writes  frames/write  ms  frames/s");
+		// a budget of one byte takes a single frame per write, like before coalescing
+		run("one frame per write", frames, 0, 1);
+		run("coalesced, no window", frames, 0, 512);
+		run("coalesced, 2 ms window", frames, 2, 512);
+		run("coalesced, 5 ms window", frames, 5, 512);
+	}
+
+	private static void run(String mode, int frames, long windowMillis, int maxBytes) throws InterruptedException {
+		ConnectionSettings settings = ConnectionSettings.get(ADDRESS)
+				.setWriteQueueCapacity(256)
+				.setWriteQueuePolicy(OverflowPolicy.BLOCK)
+				.setCoalescing(windowMillis, maxBytes);
+
+		CountingOutputStream out = new CountingOutputStream();
+		ConnectionWriter writer = new ConnectionWriter(out, ADDRESS, settings);
+		writer.start();
+
+		FrameEncoder encoder = new FrameEncoder();
+		long expectedBytes = 0;
+		final long start = System.nanoTime();
+		for (int i = 0; i < frames; i++) {
+			encoder.encode('A', i % 1024);
+			expectedBytes += encoder.getLength();
+			writer.enqueue(encoder.getBuffer(), 0, encoder.getLength());
+		}
+		while (out.bytes < expectedBytes) {
+			Thread.sleep(1);
+		}
+		final long elapsedNanos = System.nanoTime() - start;
+		writer.close();
+		writer.join();
+
+		if ("warmup".equals(mode)) return;
+		System.out.println(frames + "  " + pad(mode, 26) + "  " + out.writes + "  "
+				+ String.format("%.1f", (double) frames / out.writes) + "  "
+				+ TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "  "
+				+ frames * 1000000000L / elapsedNanos);
+	}
+
+	private static String pad(String s, int width) {
+		StringBuilder sb = new StringBuilder(s);
+		while (sb.length() < width) {
+			sb.append(' ');
+		}
+		return sb.toString();
+	}
+}
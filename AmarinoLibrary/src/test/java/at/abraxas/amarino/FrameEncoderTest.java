@@ -0,0 +1,351 @@
+package at.abraxas.amarino;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link FrameEncoder} writes the same bytes as the String messages of
+ * {@link MessageBuilder#getMessage(android.content.Intent)} encoded with ISO-8859-1.
+ *
+ * <p>The legacy concatenation is repeated here per data type, since the Intent it reads
+ * the values from does not exist outside of Android.</p>
+ */
+public class FrameEncoderTest {
+
+	private static final char ACK = MessageBuilder.ACK_FLAG;
+	private static final char DELIMITER = MessageBuilder.DELIMITER;
+
+	private static final char[] FLAGS = { 'A', 'z', '0', ';', (char) 0xE9, (char) 0x263A, (char) 0xD83D };
+
+	private static final String[] STRINGS = {
+			"", "hello", "a;b", "\u00e9\u00fc\u00ff", "\u263a\u4e2d", "\ud83d\ude00",
+			"x\ud83d\ude00y", "lone \ud83d high", "lone \ude00 low", "\u0000\u0013\u0012", "end \ud83d"
+	};
+
+	private static final long[] LONGS = {
+			0, 1, -1, 9, 10, -10, 127, -128, 255, 32767, -32768,
+			Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, 1234567890123L
+	};
+
+	private static final double[] DOUBLES = {
+			0.0, -0.0, 1.0, -1.0, 0.1, -2.5, 1.0E10, 1.0E-10, 1.0E7, 9999999.0, 0.001, 1.0E-3,
+			123456.789, Math.PI, Double.MAX_VALUE, Double.MIN_VALUE, Double.MIN_NORMAL,
+			Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+	};
+
+	private static final float[] FLOATS = {
+			0f, -0f, 1f, -1f, 0.1f, -2.5f, 1.0E10f, 1.0E-10f, 1.0E7f, 9999999f, 0.001f,
+			123456.79f, (float) Math.PI, Float.MAX_VALUE, Float.MIN_VALUE, Float.MIN_NORMAL,
+			Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY
+	};
+
+	private static final char[] CHARS = {
+			'a', ';', '0', (char) 0, (char) 0x13, (char) 0x7F, (char) 0xE9, (char) 0xFF, (char) 0x100,
+			(char) 0x263A, (char) 0xD83D, (char) 0xDE00, (char) 0xFFFF
+	};
+
+	// small on purpose, so the buffer has to grow
+	private final FrameEncoder mEncoder = new FrameEncoder(4);
+
+	/* ---------- single values ---------- */
+
+	@Test
+	public void string() {
+		for (char flag : FLAGS) {
+			for (String s : STRINGS) {
+				mEncoder.encode(flag, s);
+				assertEncoded(flag + s + ACK);
+			}
+		}
+	}
+
+	@Test
+	public void nullString() {
+		for (char flag : FLAGS) {
+			mEncoder.encode(flag, (String) null);
+			// the legacy builder sends "0" without the flag
+			assertEncoded("0" + ACK);
+		}
+	}
+
+	@Test
+	public void booleanValue() {
+		for (char flag : FLAGS) {
+			mEncoder.encode(flag, true);
+			assertEncoded(flag + (1 + String.valueOf(ACK)));
+			mEncoder.encode(flag, false);
+			assertEncoded(flag + (0 + String.valueOf(ACK)));
+		}
+	}
+
+	@Test
+	public void charValue() {
+		for (char flag : FLAGS) {
+			for (char c : CHARS) {
+				mEncoder.encode(flag, c);
+				assertEncoded(flag + (c + String.valueOf(ACK)));
+			}
+		}
+	}
+
+	@Test
+	public void integralValues() {
+		for (char flag : FLAGS) {
+			for (long l : LONGS) {
+				mEncoder.encode(flag, l);
+				assertEncoded(flag + (l + String.valueOf(ACK)));
+
+				int i = (int) l;
+				mEncoder.encode(flag, i);
+				assertEncoded(flag + (i + String.valueOf(ACK)));
+
+				short sh = (short) l;
+				mEncoder.encode(flag, sh);
+				assertEncoded(flag + (sh + String.valueOf(ACK)));
+
+				byte by = (byte) l;
+				mEncoder.encode(flag, by);
+				assertEncoded(flag + (by + String.valueOf(ACK)));
+			}
+		}
+	}
+
+	@Test
+	public void floatValue() {
+		for (char flag : FLAGS) {
+			for (float f : FLOATS) {
+				mEncoder.encode(flag, f);
+				assertEncoded(flag + (f + String.valueOf(ACK)));
+			}
+		}
+	}
+
+	@Test
+	public void doubleValue() {
+		for (char flag : FLAGS) {
+			for (double d : DOUBLES) {
+				mEncoder.encode(flag, d);
+				assertEncoded(flag + (d + String.valueOf(ACK)));
+			}
+		}
+	}
+
+	/* ---------- arrays ---------- */
+
+	@Test
+	public void intArray() {
+		int[] values = new int[LONGS.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (int) LONGS[i];
+		}
+		for (char flag : FLAGS) {
+			for (int[] a : prefixes(values)) {
+				assertTrue(mEncoder.encode(flag, a));
+				String msg = "";
+				for (int v : a) {
+					msg += String.valueOf(v) + DELIMITER;
+				}
+				assertEncoded(flag + finishingMessage(msg));
+			}
+		}
+	}
+
+	@Test
+	public void longArray() {
+		for (char flag : FLAGS) {
+			for (int n = 0; n <= LONGS.length; n++) {
+				long[] a = Arrays.copyOf(LONGS, n);
+				assertTrue(mEncoder.encode(flag, a));
+				String msg = "";
+				for (long v : a) {
+					msg += String.valueOf(v) + DELIMITER;
+				}
+				assertEncoded(flag + finishingMessage(msg));
+			}
+		}
+	}
+
+	@Test
+	public void shortArray() {
+		short[] values = new short[LONGS.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (short) LONGS[i];
+		}
+		for (char flag : FLAGS) {
+			for (int n = 0; n <= values.length; n++) {
+				short[] a = Arrays.copyOf(values, n);
+				assertTrue(mEncoder.encode(flag, a));
+				String msg = "";
+				for (short v : a) {
+					msg += String.valueOf(v) + DELIMITER;
+				}
+				assertEncoded(flag + finishingMessage(msg));
+			}
+		}
+	}
+
+	@Test
+	public void byteArray() {
+		byte[] values = new byte[LONGS.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (byte) LONGS[i];
+		}
+		for (char flag : FLAGS) {
+			for (int n = 0; n <= values.length; n++) {
+				byte[] a = Arrays.copyOf(values, n);
+				assertTrue(mEncoder.encode(flag, a));
+				String msg = "";
+				for (byte v : a) {
+					msg += String.valueOf(v) + DELIMITER;
+				}
+				assertEncoded(flag + finishingMessage(msg));
+			}
+		}
+	}
+
+	@Test
+	public void charArray() {
+		for (char flag : FLAGS) {
+			for (int n = 0; n <= CHARS.length; n++) {
+				char[] a = Arrays.copyOf(CHARS, n);
+				assertTrue(mEncoder.encode(flag, a));
+				String msg = "";
+				for (char v : a) {
+					msg += String.valueOf(v) + DELIMITER;
+				}
+				assertEncoded(flag + finishingMessage(msg));
+			}
+		}
+	}
+
+	@Test
+	public void surrogatePairInCharArray() {
+		char[] a = "\ud83d\ude00".toCharArray();
+		assertTrue(mEncoder.encode('A', a));
+		// the delimiter splits the pair, each half becomes a '?' of its own
+		assertEncoded('A' + finishingMessage(a[0] + ";" + a[1] + ";"));
+	}
+
+	@Test
+	public void booleanArray() {
+		boolean[] values = { true, false, false, true, true };
+		for (char flag : FLAGS) {
+			for (int n = 0; n <= values.length; n++) {
+				boolean[] a = Arrays.copyOf(values, n);
+				assertTrue(mEncoder.encode(flag, a));
+				String msg = "";
+				for (boolean v : a) {
+					msg += String.valueOf(v ? 1 : 0) + DELIMITER;
+				}
+				assertEncoded(flag + finishingMessage(msg));
+			}
+		}
+	}
+
+	@Test
+	public void floatArray() {
+		for (char flag : FLAGS) {
+			for (int n = 0; n <= FLOATS.length; n++) {
+				float[] a = Arrays.copyOf(FLOATS, n);
+				assertTrue(mEncoder.encode(flag, a));
+				String msg = "";
+				for (float v : a) {
+					msg += String.valueOf(v) + DELIMITER;
+				}
+				assertEncoded(flag + finishingMessage(msg));
+			}
+		}
+	}
+
+	@Test
+	public void doubleArray() {
+		for (char flag : FLAGS) {
+			for (int n = 0; n <= DOUBLES.length; n++) {
+				double[] a = Arrays.copyOf(DOUBLES, n);
+				assertTrue(mEncoder.encode(flag, a));
+				String msg = "";
+				for (double v : a) {
+					msg += String.valueOf(v) + DELIMITER;
+				}
+				assertEncoded(flag + finishingMessage(msg));
+			}
+		}
+	}
+
+	@Test
+	public void stringArray() {
+		String[] values = new String[STRINGS.length + 2];
+		System.arraycopy(STRINGS, 0, values, 1, STRINGS.length);
+		// null elements are sent as "null" by String.valueOf
+		values[0] = null;
+		values[values.length - 1] = null;
+		for (char flag : FLAGS) {
+			for (int n = 0; n <= values.length; n++) {
+				String[] a = Arrays.copyOf(values, n);
+				assertTrue(mEncoder.encode(flag, a));
+				String msg = "";
+				for (String v : a) {
+					msg += String.valueOf(v) + DELIMITER;
+				}
+				assertEncoded(flag + finishingMessage(msg));
+			}
+		}
+	}
+
+	@Test
+	public void nullArraysEncodeNothing() {
+		assertFalse(mEncoder.encode('A', (int[]) null));
+		assertFalse(mEncoder.encode('A', (long[]) null));
+		assertFalse(mEncoder.encode('A', (short[]) null));
+		assertFalse(mEncoder.encode('A', (byte[]) null));
+		assertFalse(mEncoder.encode('A', (char[]) null));
+		assertFalse(mEncoder.encode('A', (boolean[]) null));
+		assertFalse(mEncoder.encode('A', (float[]) null));
+		assertFalse(mEncoder.encode('A', (double[]) null));
+		assertFalse(mEncoder.encode('A', (String[]) null));
+		assertEncoded("");
+	}
+
+	@Test
+	public void bufferIsReusedAcrossCalls() {
+		mEncoder.encode('A', "a long message which makes the buffer grow");
+		mEncoder.encode('B', 7);
+		assertEncoded("B7" + ACK);
+	}
+
+	/**
+	 * Same as MessageBuilder.finishingMessage, drops the trailing delimiter.
+	 */
+	private static String finishingMessage(String msg) {
+		int length = msg.length();
+		if (length > 0)
+			return msg.substring(0, length - 1) + ACK;
+		else
+			return msg + ACK;
+	}
+
+	private static int[][] prefixes(int[] values) {
+		int[][] prefixes = new int[values.length + 1][];
+		for (int n = 0; n <= values.length; n++) {
+			prefixes[n] = Arrays.copyOf(values, n);
+		}
+		return prefixes;
+	}
+
+	private void assertEncoded(String legacy) {
+		byte[] expected;
+		try {
+			expected = legacy.getBytes("ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		byte[] actual = Arrays.copyOf(mEncoder.getBuffer(), mEncoder.getLength());
+		assertArrayEquals(legacy, expected, actual);
+	}
+}
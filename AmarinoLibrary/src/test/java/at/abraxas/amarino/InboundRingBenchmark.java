@@ -0,0 +1,223 @@
+package at.abraxas.amarino;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands received frames from a reading thread to one consumer thread, through an
+ * {@link InboundRing} and the way it was done before the ring: a String and a
+ * {@link ListenerEvent} per message, passed through a bounded queue.
+ * Prints the throughput, how often the reading thread found the hand-off full, the bytes both
+ * threads allocated per message and the GC runs.
+ *
+ * <p>Run as a plain Java program: {@code java at.abraxas.amarino.InboundRingBenchmark [messages]},
+ * with android.jar on the classpath. Allocation is only measured on JVMs that count it per
+ * thread (HotSpot), otherwise -1 is printed.</p>
+ */
+public class InboundRingBenchmark {
+
+	private static final String ADDRESS = "00:00:00:00:00:01";
+	private static final int CAPACITY = 1024;
+	// how long the consumer waits before it checks whether the reading thread is done
+	private static final long POLL_MILLIS = 1;
+
+	private static final byte[][] FRAMES = {
+			"1023".getBytes(),
+			"512;768;1023".getBytes(),
+			"hello from arduino".getBytes(),
+			"12.5;-3.75;0.125;9999".getBytes()
+	};
+
+	/**
+	 * One way of getting frames from the reading thread to the consumer.
+	 */
+	private interface Path {
+		/** Called by the reading thread, returns false if there was no room for the message. */
+		boolean offer(byte[] frame, int length, int dataType);
+
+		/** Called by the consumer, returns the length of the message or -1 if none arrived in time. */
+		int take() throws InterruptedException;
+	}
+
+	private static class RingPath implements Path {
+		private final InboundRing mRing;
+		private final InboundFrame mFrame = new InboundFrame();
+
+		RingPath() {
+			ConnectionSettings.get(ADDRESS).setInboundRingCapacity(CAPACITY);
+			mRing = InboundRing.get(ADDRESS);
+		}
+
+		@Override
+		public boolean offer(byte[] frame, int length, int dataType) {
+			return mRing.offer(frame, length, dataType, System.nanoTime());
+		}
+
+		@Override
+		public int take() throws InterruptedException {
+			return mRing.take(mFrame, POLL_MILLIS) ? mFrame.getLength() : -1;
+		}
+	}
+
+	/**
+	 * What the reading thread did for every message before the ring.
+	 */
+	private static class AllocatingPath implements Path {
+		private final BlockingQueue<ListenerEvent> mQueue = new ArrayBlockingQueue<ListenerEvent>(CAPACITY);
+		private final LengthListener mListener = new LengthListener();
+
+		@Override
+		public boolean offer(byte[] frame, int length, int dataType) {
+			String msg = new String(frame, 0, length);
+			return mQueue.offer(ListenerEvent.received(msg, null, ADDRESS, null));
+		}
+
+		@Override
+		public int take() throws InterruptedException {
+			ListenerEvent event = mQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			if (event == null) return -1;
+			event.deliverTo(mListener);
+			return mListener.length;
+		}
+	}
+
+	private static class LengthListener implements AmarinoListener {
+		int length;
+
+		@Override
+		public void onReceiveData(String data, String from) {
+			length = data.length();
+		}
+
+		@Override
+		public void onConnectResult(int result, String from) {}
+
+		@Override
+		public void onDisconnectResult(String from) {}
+
+		@Override
+		public void onReceiveNearbyDevices(Map<String, String> nearbyDevs) {}
+
+		@Override
+		public void onReceiveConnectedDevices(String[] connectedDevs) {}
+
+		@Override
+		public AmarinoReceiver getAmarinoReceiver() {
+			return null;
+		}
+	}
+
+	private static class Result {
+		long delivered;
+		long full;
+		long elapsedNanos;
+		long producerBytes;
+		long consumerBytes;
+		long gcRuns;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+
+		// warm up the JIT, results are discarded
+		for (int i = 0; i < 3; i++) {
+			run(new RingPath(), messages / 4);
+			run(new AllocatingPath(), messages / 4);
+		}
+
+		System.out.println("messages  path                          delivered  full  ms  msgs/s  B/msg  gc runs");
+		print("ring, reused slots", messages, run(new RingPath(), messages));
+		print("String + event per message", messages, run(new AllocatingPath(), messages));
+	}
+
+	private static Result run(final Path path, final int messages) throws Exception {
+		final Result result = new Result();
+		final long gcBefore = gcRuns();
+
+		Thread reader = new Thread("reader") {
+			@Override
+			public void run() {
+				final long allocated = allocatedBytes();
+				long full = 0;
+				for (int i = 0; i < messages; i++) {
+					byte[] frame = FRAMES[i & (FRAMES.length - 1)];
+					// unlike the real reading thread, retry so both paths hand over every message
+					while (!path.offer(frame, frame.length, 0)) {
+						full++;
+						Thread.yield();
+					}
+				}
+				result.producerBytes = allocatedBytes(allocated);
+				result.full = full;
+			}
+		};
+
+		final long consumerAllocated = allocatedBytes();
+		final long start = System.nanoTime();
+		reader.start();
+
+		long delivered = 0;
+		long checksum = 0;
+		while (true) {
+			int length = path.take();
+			if (length >= 0) {
+				delivered++;
+				checksum += length;
+			} else if (!reader.isAlive()) {
+				break;
+			}
+		}
+		result.elapsedNanos = System.nanoTime() - start;
+		result.consumerBytes = allocatedBytes(consumerAllocated);
+		reader.join();
+
+		result.delivered = delivered;
+		result.gcRuns = gcRuns() - gcBefore;
+		// keeps the consumer from being optimized away
+		if (checksum == 42) System.out.print("");
+		return result;
+	}
+
+	private static void print(String path, int messages, Result r) {
+		long bytesPerMessage = (r.producerBytes < 0 || r.consumerBytes < 0)
+				? -1 : (r.producerBytes + r.consumerBytes) / messages;
+		System.out.println(messages + "  " + pad(path, 28) + "  " + r.delivered + "  " + r.full + "  "
+				+ TimeUnit.NANOSECONDS.toMillis(r.elapsedNanos) + "  "
+				+ r.delivered * 1000000000L / r.elapsedNanos + "  "
+				+ bytesPerMessage + "  " + r.gcRuns);
+	}
+
+	/**
+	 * @return the bytes the current thread allocated so far, -1 if the JVM does not count them
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static long allocatedBytes(long since) {
+		return (since < 0) ? -1 : allocatedBytes() - since;
+	}
+
+	private static long gcRuns() {
+		long runs = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			runs += Math.max(0, gc.getCollectionCount());
+		}
+		return runs;
+	}
+
+	private static String pad(String s, int width) {
+		StringBuilder sb = new StringBuilder(s);
+		while (sb.length() < width) {
+			sb.append(' ');
+		}
+		return sb.toString();
+	}
+}